@@ -21,7 +21,6 @@
 
 package org.level28.android.moca.bitmaps;
 
-import static android.graphics.Bitmap.CompressFormat.PNG;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -30,26 +29,36 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import org.level28.android.moca.BuildConfig;
 import org.level28.android.moca.MocaApp;
 import org.level28.android.moca.R;
 import org.level28.android.moca.ui.CacheableImageView;
+import org.level28.android.moca.util.StripedLruCache;
+import org.level28.android.moca.util.PriorityExecutor;
 import org.level28.android.moca.util.SafeAsyncTask;
+import org.level28.android.moca.util.TaskGroup;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.graphics.BitmapFactory;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Environment;
-import android.text.TextUtils;
 import android.util.Log;
+import android.view.ViewGroup;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import com.jakewharton.DiskLruCache;
 
 /**
@@ -64,12 +73,82 @@ public abstract class AbstractBitmapLoader {
     private static final int DISK_CACHE_VERSION = 1;
     private static final int HASH_LENGTH = 40;
 
+    /** Largest size class, see {@link BitmapLruCache} */
+    static final int LARGEST_SIZE_CLASS = 512;
+
+    /**
+     * Sizes bitmaps are loaded at: requests are rounded up to the nearest
+     * one, so that views with slightly different sizes share the same bitmap
+     */
+    private static final int[] SIZE_CLASSES = { 32, 48, 64, 96, 128, 192,
+            256, 384, LARGEST_SIZE_CLASS };
+
+    /** How many larger size classes may stand in for an L1 cache miss */
+    private static final int MAX_LARGER_SIZE_CLASSES = 2;
+
+    /** Number of URLs whose cache keys are memoized */
+    private static final int KEY_CACHE_SIZE = 256;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef"
+            .toCharArray();
+
+    /** Memoized cache keys by URL, one for each size class */
+    private static final StripedLruCache<String, String[]> KEY_CACHE = new StripedLruCache<String, String[]>(
+            KEY_CACHE_SIZE) {
+        @Override
+        protected String[] create(String url) {
+            return new String[SIZE_CLASSES.length];
+        }
+    };
+
+    /** SHA-1 digests are expensive to look up, keep one for each thread */
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                Log.wtf(LOG_TAG,
+                        "The runtime environment does not support SHA-1", e);
+                return null;
+            }
+        }
+    };
+
+    // All pipeline stages run the newest, most important loads first, so
+    // that rows currently on screen don't wait behind rows long gone
+
+    // When a stage queue fills up the least relevant load is dropped, it
+    // will be retried next time its row is bound
+
+    /** Maximum number of queued jobs for each pipeline stage */
+    private static final int STAGE_QUEUE_CAPACITY = 64;
+
+    /** Executor for L2 cache reads and writes */
+    private static final PriorityExecutor DISK_EXECUTOR = new PriorityExecutor(
+            "Bitmap disk", 2, STAGE_QUEUE_CAPACITY);
+
+    /** Executor for network fetches */
+    private static final PriorityExecutor NETWORK_EXECUTOR = new PriorityExecutor(
+            "Bitmap network", 4, STAGE_QUEUE_CAPACITY);
+
+    /** Executor for decoding and processing, one thread per core */
+    private static final PriorityExecutor DECODE_EXECUTOR = new PriorityExecutor(
+            "Bitmap decode", Runtime.getRuntime().availableProcessors(),
+            STAGE_QUEUE_CAPACITY);
+
     /** L1 bitmap cache: memory */
     private final BitmapLruCache mMemoryCache;
 
     /** L2 bitmap cache: sdcard */
     private final DiskLruCache mDiskCache;
 
+    /** On-disk format of L2 cache entries */
+    private final BitmapCodec mDiskCodec;
+
+    /** Raw pixels L2 tier, checked before the L2 cache (optional) */
+    private final BitmapSlabCache mSlabCache;
+
     /** Placeholder drawable */
     private final Drawable mPlaceHolderDrawable;
 
@@ -78,6 +157,13 @@ public abstract class AbstractBitmapLoader {
 
     protected boolean mReleased;
 
+    /** All pipeline stages started by this loader */
+    private final TaskGroup mTasks = new TaskGroup();
+
+    /** Loads in progress, by cache key (UI thread only) */
+    private final HashMap<String, PendingLoad> mPendingLoads = Maps
+            .newHashMap();
+
     public AbstractBitmapLoader(Context context, int placeholderResId) {
         mContext = context;
 
@@ -90,16 +176,26 @@ public abstract class AbstractBitmapLoader {
             cacheDir.mkdirs();
         }
 
+        mDiskCodec = createDiskCodec();
+
         DiskLruCache diskCache;
         try {
-            diskCache = DiskLruCache.open(cacheDir, DISK_CACHE_VERSION, 1,
-                    DISK_CACHE_SIZE);
+            // Entries stored in another format will be discarded
+            diskCache = DiskLruCache.open(cacheDir, DISK_CACHE_VERSION << 8
+                    | mDiskCodec.getFormatId(), 1, DISK_CACHE_SIZE);
         } catch (IOException e) {
             Log.w(LOG_TAG, "Error while creating L2 bitmap cache", e);
             diskCache = null;
         }
         mDiskCache = diskCache;
 
+        // Keep the slab on internal storage: a memory mapping on an
+        // unmounted sdcard is a one-way ticket to SIGBUS
+        final int slabCacheSize = getSlabCacheSize();
+        mSlabCache = slabCacheSize > 0 ? new BitmapSlabCache(new File(
+                context.getCacheDir(), getDiskCacheName() + ".slab"),
+                slabCacheSize) : null;
+
         mPlaceHolderDrawable = context.getResources().getDrawable(
                 placeholderResId);
         mReleased = false;
@@ -110,6 +206,49 @@ public abstract class AbstractBitmapLoader {
      */
     protected abstract String getDiskCacheName();
 
+    /**
+     * Create the codec used to store bitmaps in the L2 cache.
+     * <p>
+     * The default implementation stores processed bitmaps as
+     * {@link BitmapCodec#PNG}. Loaders may want to trade disk space for
+     * decoding speed with {@link BitmapCodec#RAW}, or skip encoding
+     * altogether with {@link #createSourceCodec()}: run the codec benchmark
+     * in the test package on a real device before switching.
+     * <p>
+     * Called once from the constructor.
+     */
+    protected BitmapCodec createDiskCodec() {
+        return BitmapCodec.PNG;
+    }
+
+    /**
+     * Create a codec storing the original data returned by
+     * {@link #fetchMissingBitmap(Context, String)}, which is run through
+     * {@link #decodeMissingBitmap(byte[], int, int)} again on L2 cache hits.
+     * <p>
+     * Entries are as small as the source images and nothing is encoded on
+     * the fetch path, but every L2 cache hit pays for processing again.
+     */
+    protected final BitmapCodec createSourceCodec() {
+        return new SourceCodec();
+    }
+
+    /**
+     * Get the size of the raw pixels L2 tier, in bytes.
+     * <p>
+     * This tier keeps the pixels of recently loaded bitmaps in a
+     * memory-mapped file, so that they can be restored without decoding. It
+     * only pays off when all bitmaps have the same size, and it's disabled
+     * by default.
+     * <p>
+     * Called once from the constructor.
+     * 
+     * @return the size of the slab file, or {@code 0} to disable the tier
+     */
+    protected int getSlabCacheSize() {
+        return 0;
+    }
+
     /**
      * Evict all elements from the L1 cache and close the L2 cache.
      */
@@ -123,11 +262,21 @@ public abstract class AbstractBitmapLoader {
             // using other objects as monitors.
         }
 
+        // Stop all loads in progress (and those which are just about to be
+        // handed over to the next stage)
+        mTasks.close();
+        mPendingLoads.clear();
+
         if (evictAll) {
             // Evict all elements from the L1 cache (thread-safe)
             mMemoryCache.evictAll();
         }
 
+        if (mSlabCache != null) {
+            // Flush the raw pixels tier (thread-safe)
+            mSlabCache.close();
+        }
+
         if (mDiskCache != null) {
             try {
                 // Close the L2 cache (synchronized on the cache itself)
@@ -153,19 +302,42 @@ public abstract class AbstractBitmapLoader {
     public void load(final CacheableImageView view, final String url) {
         checkNotNull(view, "ImageView may not be null");
 
+        // Key of the bitmap this view was waiting for (if any)
+        final Object previousKey = view.getTag(R.id.iv_avatar_tag);
+
         if (url == null) {
+            detachView(view, previousKey);
             setImage(mPlaceHolderDrawable, view);
             return;
         }
 
         // Get all parameters required to build the cache key
-        final int width = view.getWidth();
-        final int height = view.getHeight();
-        final String cacheKey = getBitmapKey(url, width, height);
+        int width = view.getWidth();
+        int height = view.getHeight();
+        if (width <= 0 || height <= 0) {
+            // Not laid out yet (e.g. the first rows of a list), a fixed size
+            // from the layout is just as good and matches prefetched keys
+            final ViewGroup.LayoutParams params = view.getLayoutParams();
+            if (params != null) {
+                width = params.width;
+                height = params.height;
+            }
+        }
+        final int sizeClass = getSizeClass(width, height);
+        final String cacheKey = getBitmapKey(url, sizeClass);
+
+        if (!cacheKey.equals(previousKey)) {
+            // The view has been recycled for another bitmap
+            detachView(view, previousKey);
+        }
 
         BitmapWrapper loadedImage;
         try {
             loadedImage = getBitmapFromL1Cache(cacheKey);
+            if (loadedImage == null || !loadedImage.hasValidBitmap()) {
+                // A larger bitmap will do, the view scales it down
+                loadedImage = getLargerBitmapFromL1Cache(url, sizeClass);
+            }
         } catch (IllegalStateException e) {
             // load() called after the loader has been finalized.
             // The right thing to do would be to check for finalization as a
@@ -182,9 +354,89 @@ public abstract class AbstractBitmapLoader {
             // L1 cache miss, go in background
             setImage(mPlaceHolderDrawable, view, cacheKey);
 
-            FetchBitmapTask task = new FetchBitmapTask(mContext, view, url,
-                    cacheKey);
-            task.execute();
+            PendingLoad pending = mPendingLoads.get(cacheKey);
+            if (pending == null) {
+                pending = new PendingLoad(url, cacheKey, sizeClass,
+                        sizeClass, PriorityExecutor.PRIORITY_NORMAL);
+                mPendingLoads.put(cacheKey, pending);
+                new DiskLookupTask(pending).execute();
+            }
+            // Piggyback on the load already in progress (if any), someone is
+            // waiting for it now
+            if (!pending.hasView(view)) {
+                pending.addView(view);
+            }
+            pending.promote(PriorityExecutor.PRIORITY_NORMAL);
+        }
+    }
+
+    /**
+     * Warm up the caches for an avatar which is likely to be displayed soon.
+     * <p>
+     * Prefetches run at low priority and are promoted if a view asks for the
+     * same avatar while they're still in progress.
+     * 
+     * @param url
+     *            the URL from which the avatar can be retrieved
+     * @param width
+     *            width of the view which will display the avatar
+     * @param height
+     *            height of the view which will display the avatar
+     * @see #cancelPrefetches()
+     */
+    public void prefetch(final String url, final int width, final int height) {
+        if (url == null) {
+            return;
+        }
+
+        final int sizeClass = getSizeClass(width, height);
+        final String cacheKey = getBitmapKey(url, sizeClass);
+        if (mPendingLoads.containsKey(cacheKey)) {
+            return;
+        }
+
+        BitmapWrapper loadedImage;
+        try {
+            loadedImage = getBitmapFromL1Cache(cacheKey);
+            if (loadedImage == null || !loadedImage.hasValidBitmap()) {
+                loadedImage = getLargerBitmapFromL1Cache(url, sizeClass);
+            }
+        } catch (IllegalStateException e) {
+            // Loader already finalized, don't bother
+            return;
+        }
+        if (loadedImage == null || !loadedImage.hasValidBitmap()) {
+            final PendingLoad pending = new PendingLoad(url, cacheKey,
+                    sizeClass, sizeClass, PriorityExecutor.PRIORITY_LOW);
+            mPendingLoads.put(cacheKey, pending);
+            new DiskLookupTask(pending).execute();
+        }
+    }
+
+    /**
+     * Stop loading an avatar for the given view, cancelling the load if no
+     * other view is waiting for it.
+     * 
+     * @param view
+     *            a view previously passed to
+     *            {@link #load(CacheableImageView, String)}
+     */
+    public void cancel(final CacheableImageView view) {
+        detachView(view, view.getTag(R.id.iv_avatar_tag));
+        view.setTag(R.id.iv_avatar_tag, null);
+    }
+
+    /**
+     * Cancel all prefetches no view is waiting for.
+     */
+    public void cancelPrefetches() {
+        final Iterator<PendingLoad> it = mPendingLoads.values().iterator();
+        while (it.hasNext()) {
+            final PendingLoad load = it.next();
+            if (!load.hasViews()) {
+                it.remove();
+                load.cancel();
+            }
         }
     }
 
@@ -220,8 +472,33 @@ public abstract class AbstractBitmapLoader {
         return mMemoryCache.get(key);
     }
 
+    /**
+     * Look for the same bitmap loaded for a slightly larger size class.
+     */
+    private BitmapWrapper getLargerBitmapFromL1Cache(final String url,
+            final int sizeClass) {
+        if (sizeClass == 0) {
+            // Unknown size, nothing to compare to
+            return null;
+        }
+        int candidates = 0;
+        for (int i = 0; i < SIZE_CLASSES.length
+                && candidates < MAX_LARGER_SIZE_CLASSES; i++) {
+            if (SIZE_CLASSES[i] > sizeClass) {
+                candidates++;
+                // Don't let speculative lookups skew cache admission
+                final BitmapWrapper larger = mMemoryCache.peek(getBitmapKey(
+                        url, SIZE_CLASSES[i]));
+                if (larger != null && larger.hasValidBitmap()) {
+                    return larger;
+                }
+            }
+        }
+        return null;
+    }
+
     /** @hide */
-    final BitmapWrapper getBitmapFromL2Cache(final String key) {
+    final byte[] readFromL2Cache(final String key) {
         synchronized (this) {
             checkState(!mReleased, "BitmapLoader has been released");
         }
@@ -234,9 +511,8 @@ public abstract class AbstractBitmapLoader {
                 // Do we have this avatar stored?
                 if (cacheSnapshot != null) {
                     // Indeed we do
-                    return new BitmapWrapper(key,
-                            BitmapFactory.decodeStream(cacheSnapshot
-                                    .getInputStream(0)));
+                    return ByteStreams.toByteArray(cacheSnapshot
+                            .getInputStream(0));
                 }
             }
         } catch (IOException e) {
@@ -250,6 +526,32 @@ public abstract class AbstractBitmapLoader {
         return null;
     }
 
+    /**
+     * Read a bitmap from the slab cache (if any), reusing a pooled bitmap.
+     */
+    final Bitmap readFromSlabCache(final String key) {
+        synchronized (this) {
+            checkState(!mReleased, "BitmapLoader has been released");
+        }
+        return mSlabCache != null ? mSlabCache.get(key, getBitmapPool())
+                : null;
+    }
+
+    /**
+     * Store a bitmap in the slab cache (if any).
+     */
+    void addBitmapToSlabCache(final String key, final Bitmap bitmap) {
+        synchronized (this) {
+            if (mReleased) {
+                // Do not log the error
+                return;
+            }
+        }
+        if (mSlabCache != null) {
+            mSlabCache.put(key, bitmap);
+        }
+    }
+
     /** @hide */
     void addBitmapToL1Cache(BitmapWrapper bitmapWrapper) {
         synchronized (this) {
@@ -261,8 +563,15 @@ public abstract class AbstractBitmapLoader {
         mMemoryCache.put(bitmapWrapper);
     }
 
+    /**
+     * Get the pool of reusable bitmaps fed by the L1 cache.
+     */
+    protected final BitmapPool getBitmapPool() {
+        return mMemoryCache.getBitmapPool();
+    }
+
     /** @hide */
-    void addBitmapToL2Cache(BitmapWrapper bitmapWrapper) {
+    void addBitmapToL2Cache(final String key, final byte[] data) {
         synchronized (this) {
             if (mReleased) {
                 // Do not log the error
@@ -270,14 +579,12 @@ public abstract class AbstractBitmapLoader {
             }
         }
 
-        final String key = bitmapWrapper.getKey();
-
         if (mDiskCache != null) {
             try {
                 DiskLruCache.Editor l2CacheEditor = mDiskCache.edit(key);
                 if (l2CacheEditor != null) {
                     OutputStream cacheStream = l2CacheEditor.newOutputStream(0);
-                    bitmapWrapper.getBitmap().compress(PNG, 100, cacheStream);
+                    cacheStream.write(data);
                     cacheStream.flush();
                     cacheStream.close();
                     l2CacheEditor.commit();
@@ -288,81 +595,200 @@ public abstract class AbstractBitmapLoader {
         }
     }
 
-    /** Task for fetching avatars off the network */
-    private class FetchBitmapTask extends SafeAsyncTask<BitmapWrapper> {
-        private final Context mContext;
+    /**
+     * Detach a view from the load it was waiting for, cancelling the load if
+     * nobody else is interested in it.
+     * <p>
+     * Runs on the UI thread.
+     */
+    private void detachView(final CacheableImageView view, final Object key) {
+        if (key == null) {
+            return;
+        }
+        final PendingLoad load = mPendingLoads.get(key);
+        if (load == null) {
+            return;
+        }
+        load.removeView(view);
+        if (!load.hasViews()) {
+            if (BuildConfig.DEBUG) {
+                Log.v(LOG_TAG, "Cancelling load for " + load.mUrl);
+            }
+            mPendingLoads.remove(key);
+            load.cancel();
+        }
+    }
 
-        private final WeakReference<CacheableImageView> mImageView;
+    /**
+     * Deliver the outcome of a load to every view still waiting for it.
+     * <p>
+     * Runs on the UI thread.
+     * 
+     * @param result
+     *            the loaded bitmap, or {@code null} if the load failed
+     */
+    private void finishLoad(final PendingLoad load, final BitmapWrapper result) {
+        // A cancelled load might have been superseded by a new one
+        if (mPendingLoads.get(load.mKey) == load) {
+            mPendingLoads.remove(load.mKey);
+        }
+        if (result == null) {
+            return;
+        }
 
-        private final String mUrl;
-        private final String mKey;
-        private final int mWidth;
-        private final int mHeight;
+        for (WeakReference<CacheableImageView> ref : load.mViews) {
+            // Check if the view has been recycled
+            final CacheableImageView view = ref.get();
+            if (view != null
+                    && load.mKey.equals(view.getTag(R.id.iv_avatar_tag))) {
+                setImage(result, view);
+            }
+        }
+        // Promote the bitmap to L1 cache, now that views hold a reference to
+        // it (the cache may not admit it)
+        addBitmapToL1Cache(result);
+    }
+
+    /**
+     * A load in progress, shared by all views waiting for the same bitmap.
+     * <p>
+     * Only accessed on the UI thread, except for the cancellation state which
+     * is checked by the pipeline stages.
+     */
+    private static final class PendingLoad {
+        final String mUrl;
+        final String mKey;
+        final int mWidth;
+        final int mHeight;
+
+        /** Scheduling priority of the next stages */
+        volatile int mPriority;
 
-        private FetchBitmapTask(Context context, CacheableImageView view,
-                String url, String key) {
-            // Use the default single-threaded executor so that multiple fetches
-            // are properly serialized
-            super(SINGLE_THREAD_EXECUTOR);
+        /** Use weak references so that we don't keep ghosts lying around */
+        final ArrayList<WeakReference<CacheableImageView>> mViews = Lists
+                .newArrayListWithCapacity(1);
 
-            // Use the application context so we don't crap out if the activity
-            // is disposed
-            mContext = context.getApplicationContext();
+        /** Set once the last interested view goes away */
+        volatile boolean mCancelled;
 
-            // Use a weak reference so that we don't keep ghosts lying around
-            mImageView = new WeakReference<CacheableImageView>(view);
+        /** Stage currently queued or running */
+        volatile StageTask<?> mStage;
 
+        PendingLoad(String url, String key, int width, int height,
+                int priority) {
             mUrl = url;
             mKey = key;
-            mWidth = view.getWidth();
-            mHeight = view.getHeight();
+            mWidth = width;
+            mHeight = height;
+            mPriority = priority;
         }
 
-        @Override
-        public BitmapWrapper call() throws Exception {
-            if (TextUtils.isEmpty(mUrl) || TextUtils.isEmpty(mKey)) {
-                return null;
+        void addView(CacheableImageView view) {
+            mViews.add(new WeakReference<CacheableImageView>(view));
+        }
+
+        boolean hasView(CacheableImageView view) {
+            for (WeakReference<CacheableImageView> ref : mViews) {
+                if (ref.get() == view) {
+                    return true;
+                }
             }
+            return false;
+        }
 
-            // Try L2 cache first
-            BitmapWrapper cachedBitmap;
-            try {
-                cachedBitmap = getBitmapFromL2Cache(mKey);
-            } catch (IllegalStateException e) {
-                // Prevent a stupid race condition between application
-                // termination and background loading from polluting the log
-                return null;
+        /** Remove the given view, along with garbage-collected ones */
+        void removeView(CacheableImageView view) {
+            final Iterator<WeakReference<CacheableImageView>> it = mViews
+                    .iterator();
+            while (it.hasNext()) {
+                final CacheableImageView other = it.next().get();
+                if (other == null || other == view) {
+                    it.remove();
+                }
+            }
+        }
+
+        boolean hasViews() {
+            return !mViews.isEmpty();
+        }
+
+        /**
+         * Raise the priority of this load, moving the stage currently queued
+         * ahead of less important work.
+         */
+        void promote(int priority) {
+            if (mPriority >= priority) {
+                return;
             }
-            if (cachedBitmap != null) {
-                return cachedBitmap;
+            // Stages started from now on pick up the new priority
+            mPriority = priority;
+            final StageTask<?> stage = mStage;
+            if (stage != null) {
+                stage.reprioritize(priority);
             }
+        }
 
-            // Tough luck, retrieve it
-            cachedBitmap = loadMissingBitmap(mContext, mUrl, mKey, mWidth,
-                    mHeight);
-            if (cachedBitmap != null) {
-                addBitmapToL2Cache(cachedBitmap);
+        /**
+         * Stop the load at the end of its current stage, or right away if the
+         * stage hasn't started yet.
+         */
+        void cancel() {
+            mCancelled = true;
+            final StageTask<?> stage = mStage;
+            if (stage != null) {
+                stage.cancelIfQueued();
             }
-            return cachedBitmap;
+        }
+    }
+
+    /**
+     * Base class for a single stage of the loading pipeline.
+     * <p>
+     * Intermediate stages hand the load over to the next stage themselves;
+     * whatever goes wrong along the way terminates the load.
+     */
+    private abstract class StageTask<ResultT> extends SafeAsyncTask<ResultT> {
+        protected final PendingLoad mLoad;
+
+        StageTask(Executor executor, PendingLoad load) {
+            super(executor);
+            // Don't park pool threads while the UI thread catches up
+            asyncCallbacks(true);
+            group(mTasks);
+            priority(load.mPriority);
+            mLoad = load;
+            load.mStage = this;
         }
 
         @Override
-        protected void onSuccess(final BitmapWrapper result) throws Exception {
-            if (result != null) {
-                // Promote the bitmap to L1 cache
-                addBitmapToL1Cache(result);
-                // Check if the view has been recycled
-                final CacheableImageView view = mImageView.get();
-                if (view != null
-                        && mKey.equals(view.getTag(R.id.iv_avatar_tag))) {
-                    setImage(result, view);
-                }
+        public FutureTask<Void> future() {
+            // The load might have been promoted since this stage was created
+            priority(mLoad.mPriority);
+            return super.future();
+        }
+
+        /**
+         * Cancel this stage if it's still sitting in its executor queue.
+         */
+        void cancelIfQueued() {
+            final FutureTask<Void> future = mFuture;
+            if (future != null) {
+                // Don't interrupt running stages, there's nothing to gain by
+                // tearing down a connection or a decoder half-way through
+                future.cancel(false);
             }
         }
 
         @Override
         protected void onInterrupted(Exception e) {
             // Swallow silently any interruption
+            finishLoad(mLoad, null);
+        }
+
+        @Override
+        protected void onCancelled() {
+            // Either nobody wants it anymore or the executor shed it
+            finishLoad(mLoad, null);
         }
 
         @Override
@@ -370,30 +796,201 @@ public abstract class AbstractBitmapLoader {
             if (BuildConfig.DEBUG) {
                 Log.d(LOG_TAG, "Avatar load failed", e);
             }
+            finishLoad(mLoad, null);
+        }
+    }
+
+    /** Stage 1: L2 cache lookup */
+    private final class DiskLookupTask extends StageTask<BitmapWrapper> {
+        DiskLookupTask(PendingLoad load) {
+            super(DISK_EXECUTOR, load);
+        }
+
+        @Override
+        public BitmapWrapper call() throws Exception {
+            if (mLoad.mCancelled) {
+                return null;
+            }
+            // Raw pixels can be restored right here, no decoding needed
+            final Bitmap restored = readFromSlabCache(mLoad.mKey);
+            if (restored != null) {
+                return new BitmapWrapper(mLoad.mKey, restored);
+            }
+            // Then try the L2 cache
+            final byte[] cached = readFromL2Cache(mLoad.mKey);
+            if (cached != null) {
+                // Decode even if nobody is waiting anymore, it's cheap enough
+                // and the bitmap will likely be needed again soon
+                new DecodeTask(mLoad, cached, true).execute();
+            } else if (!mLoad.mCancelled) {
+                // Tough luck, retrieve it
+                new NetworkFetchTask(mLoad).execute();
+            }
+            // The next stage will deliver the result
+            return null;
+        }
+
+        @Override
+        protected void onSuccess(final BitmapWrapper result) throws Exception {
+            if (result != null) {
+                finishLoad(mLoad, result);
+            }
+        }
+    }
+
+    /** Stage 2: network fetch (L2 cache misses only) */
+    private final class NetworkFetchTask extends StageTask<Void> {
+        private final Context mContext;
+
+        NetworkFetchTask(PendingLoad load) {
+            super(NETWORK_EXECUTOR, load);
+            // Use the application context so we don't crap out if the
+            // activity is disposed
+            mContext = AbstractBitmapLoader.this.mContext
+                    .getApplicationContext();
+        }
+
+        @Override
+        public Void call() throws Exception {
+            if (mLoad.mCancelled) {
+                return null;
+            }
+            final byte[] data = fetchMissingBitmap(mContext, mLoad.mUrl);
+            if (data == null) {
+                throw new IOException("Unable to fetch " + mLoad.mUrl);
+            }
+            new DecodeTask(mLoad, data, false).execute();
+            return null;
         }
     }
 
     /**
-     * Load asynchronously a missing image.
+     * L2 cache format storing the source data, processed again on each hit.
+     */
+    private final class SourceCodec extends BitmapCodec {
+        SourceCodec() {
+            super(0);
+        }
+
+        @Override
+        public byte[] encode(byte[] source, Bitmap bitmap) {
+            return source;
+        }
+
+        @Override
+        public Bitmap decode(byte[] data, int width, int height,
+                BitmapPool pool) throws Exception {
+            return decodeMissingBitmap(data, width, height);
+        }
+    }
+
+    /** Stage 3: decoding (and L2 cache encoding for fresh bitmaps) */
+    private final class DecodeTask extends StageTask<BitmapWrapper> {
+        private final byte[] mData;
+        private final boolean mFromL2Cache;
+
+        private byte[] mEncoded;
+
+        DecodeTask(PendingLoad load, byte[] data, boolean fromL2Cache) {
+            super(DECODE_EXECUTOR, load);
+            mData = data;
+            mFromL2Cache = fromL2Cache;
+        }
+
+        @Override
+        public BitmapWrapper call() throws Exception {
+            final Bitmap bitmap;
+            if (mFromL2Cache) {
+                bitmap = mDiskCodec.decode(mData, mLoad.mWidth,
+                        mLoad.mHeight, getBitmapPool());
+            } else {
+                bitmap = decodeMissingBitmap(mData, mLoad.mWidth,
+                        mLoad.mHeight);
+                if (bitmap != null) {
+                    // Encode it now, while nobody else can touch the bitmap
+                    mEncoded = mDiskCodec.encode(mData, bitmap);
+                }
+            }
+            if (bitmap != null) {
+                // Keep its pixels too, next time it will be just a copy away
+                addBitmapToSlabCache(mLoad.mKey, bitmap);
+            }
+            return bitmap != null ? new BitmapWrapper(mLoad.mKey, bitmap)
+                    : null;
+        }
+
+        @Override
+        protected void onSuccess(final BitmapWrapper result) throws Exception {
+            finishLoad(mLoad, result);
+            if (mEncoded != null) {
+                new DiskStoreTask(mLoad.mKey, mEncoded).execute();
+            }
+        }
+    }
+
+    /** Stage 4: L2 cache write-back, off the critical path */
+    private final class DiskStoreTask extends SafeAsyncTask<Void> {
+        private final String mKey;
+        private final byte[] mData;
+
+        DiskStoreTask(String key, byte[] data) {
+            super(DISK_EXECUTOR);
+            // Nobody is waiting for this
+            asyncCallbacks(true);
+            group(mTasks);
+            priority(PriorityExecutor.PRIORITY_LOW);
+            mKey = key;
+            mData = data;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            addBitmapToL2Cache(mKey, mData);
+            return null;
+        }
+
+        @Override
+        protected void onException(Exception e) throws RuntimeException {
+            // Swallow the exception
+        }
+    }
+
+    /**
+     * Fetch the raw data of a missing image.
      * <p>
-     * <b>BE EXTRA CAREFUL</b>: this method runs inside an {@code AsyncTask},
-     * don't do anything stupid like accessing the UI or referring to non-final
-     * fields.
+     * <b>BE EXTRA CAREFUL</b>: this method runs on a background thread of the
+     * network pool, don't do anything stupid like accessing the UI or
+     * referring to non-final fields.
      * 
      * @param context
-     *            context used by the {@code AsyncTask}
+     *            application context
      * @param url
      *            url of the image that should be loaded
-     * @param key
-     *            cache key
+     * @return the compressed image data, or {@code null} if unavailable
+     */
+    protected abstract byte[] fetchMissingBitmap(final Context context,
+            final String url) throws Exception;
+
+    /**
+     * Decode and process a freshly fetched image.
+     * <p>
+     * <b>BE EXTRA CAREFUL</b>: this method runs on a background thread of the
+     * decoding pool, don't do anything stupid like accessing the UI or
+     * referring to non-final fields. This method is also used to decode L2
+     * cache entries if {@link #createDiskCodec()} returns
+     * {@link #createSourceCodec()}.
+     * 
+     * @param data
+     *            compressed image data returned by
+     *            {@link #fetchMissingBitmap(Context, String)}
      * @param width
-     *            requested image width
+     *            requested image width, rounded up to its size class
      * @param height
-     *            requested image height
+     *            requested image height, rounded up to its size class
+     * @return the decoded bitmap, or {@code null} if it can't be decoded
      */
-    protected abstract BitmapWrapper loadMissingBitmap(final Context context,
-            final String url, final String key, final int width,
-            final int height) throws Exception;
+    protected abstract Bitmap decodeMissingBitmap(final byte[] data,
+            final int width, final int height) throws Exception;
 
     private static File getCacheDir(Context context, String uniqueName) {
         // Check if media is mounted or storage is built-in, if so, try and use
@@ -417,36 +1014,83 @@ public abstract class AbstractBitmapLoader {
         return Environment.isExternalStorageRemovable();
     }
 
+    /**
+     * Round the size of a view up to its size class.
+     * 
+     * @return the size class, or {@code 0} if the view hasn't been laid out
+     *         yet
+     */
+    private static int getSizeClass(final int width, final int height) {
+        final int size = Math.max(width, height);
+        if (size <= 0) {
+            return 0;
+        }
+        for (int sizeClass : SIZE_CLASSES) {
+            if (size <= sizeClass) {
+                return sizeClass;
+            }
+        }
+        // Huge view, use multiples of the largest size class
+        return (size + LARGEST_SIZE_CLASS - 1) / LARGEST_SIZE_CLASS
+                * LARGEST_SIZE_CLASS;
+    }
+
     /**
      * Obtain the cache key for a given avatar - defined as
-     * {@code SHA1(URL::WxH)}
+     * {@code SHA1(URL::SIZECLASS)}
+     * <p>
+     * This runs for every row bind, so keys are memoized and only computed
+     * the first time an avatar is seen at a given size class.
      */
-    private static String getBitmapKey(final String url, final int width,
-            final int height) {
+    static String getBitmapKey(final String url, final int sizeClass) {
+        final int index = Arrays.binarySearch(SIZE_CLASSES, sizeClass);
+        if (index < 0) {
+            // Unknown or huge size, not worth memoizing
+            return computeBitmapKey(url, sizeClass);
+        }
+
+        final String[] keys = KEY_CACHE.get(url);
+        String key = keys[index];
+        if (key == null) {
+            // Racing threads will just compute the same key twice
+            key = computeBitmapKey(url, sizeClass);
+            keys[index] = key;
+        }
+        return key;
+    }
+
+    /**
+     * Compute the cache key for a given avatar, bypassing memoization.
+     * <p>
+     * Never returns {@code null}: should SHA-1 or UTF-8 be unavailable, a
+     * weaker key is built from the URL hash code instead.
+     */
+    static String computeBitmapKey(final String url, final int sizeClass) {
         final String finalKey = new StringBuilder(url).append("::")
-                .append(width).append('x').append(height).toString();
-        byte[] digested;
+                .append(sizeClass).toString();
+        final MessageDigest digest = SHA1_DIGEST.get();
+        if (digest == null) {
+            return fallbackBitmapKey(finalKey);
+        }
 
+        final byte[] digested;
         try {
-            digested = MessageDigest.getInstance("SHA-1").digest(
-                    finalKey.getBytes("UTF-8"));
+            digested = digest.digest(finalKey.getBytes("UTF-8"));
         } catch (UnsupportedEncodingException e) {
             Log.wtf(LOG_TAG, "The runtime environment does not support UTF-8", e);
-            return null;
-        } catch (NoSuchAlgorithmException e) {
-            Log.wtf(LOG_TAG, "The runtime environment does not support SHA-1", e);
-            return null;
+            return fallbackBitmapKey(finalKey);
         }
 
-        String hashed = new BigInteger(1, digested).toString(16);
-        final int padding = HASH_LENGTH - hashed.length();
-        if (padding == 0) {
-            return hashed;
+        final char[] hashed = new char[HASH_LENGTH];
+        for (int i = 0; i < digested.length; i++) {
+            hashed[2 * i] = HEX_DIGITS[(digested[i] >> 4) & 0x0f];
+            hashed[2 * i + 1] = HEX_DIGITS[digested[i] & 0x0f];
         }
+        return new String(hashed);
+    }
 
-        char[] zeros = new char[padding];
-        Arrays.fill(zeros, '0');
-        return new StringBuilder(HASH_LENGTH).append(zeros).append(hashed)
-                .toString();
+    private static String fallbackBitmapKey(final String finalKey) {
+        return Integer.toHexString(finalKey.hashCode()) + "_"
+                + finalKey.length();
     }
 }
@@ -0,0 +1,191 @@
+// @formatter:off
+/*
+ * BitmapCodec.java - on-disk formats for cached bitmaps
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+/**
+ * On-disk format of bitmaps stored in the L2 cache.
+ * <p>
+ * Implementations must be thread safe, as they are used concurrently by all
+ * decoding threads.
+ * 
+ * @author Matteo Panella
+ */
+public abstract class BitmapCodec {
+
+    /**
+     * Lossless PNG: compact for flat images, but slow to both encode and
+     * decode.
+     */
+    public static final BitmapCodec PNG = new CompressedCodec(1,
+            CompressFormat.PNG, 100);
+
+    /**
+     * Raw pixel dump: decoding is a plain memory copy into a (possibly
+     * pooled) bitmap, at the price of four bytes per pixel on disk.
+     */
+    public static final BitmapCodec RAW = new RawCodec(2);
+
+    private final int mFormatId;
+
+    protected BitmapCodec(int formatId) {
+        mFormatId = formatId;
+    }
+
+    /**
+     * Get the unique identifier of this format.
+     * <p>
+     * The identifier is part of the L2 cache version, so that switching
+     * format discards all entries stored in the old one.
+     */
+    public final int getFormatId() {
+        return mFormatId;
+    }
+
+    /**
+     * Encode a freshly loaded bitmap for the L2 cache.
+     * 
+     * @param source
+     *            the raw data the bitmap has been decoded from
+     * @param bitmap
+     *            the processed bitmap
+     * @return the data to store, or {@code null} if the bitmap should not be
+     *         cached
+     */
+    public abstract byte[] encode(byte[] source, Bitmap bitmap);
+
+    /**
+     * Decode a bitmap stored in the L2 cache.
+     * 
+     * @param data
+     *            the data returned by {@link #encode(byte[], Bitmap)}
+     * @param width
+     *            requested bitmap width
+     * @param height
+     *            requested bitmap height
+     * @param pool
+     *            pool of reusable bitmaps
+     * @return the decoded bitmap, or {@code null} if it can't be decoded
+     */
+    public abstract Bitmap decode(byte[] data, int width, int height,
+            BitmapPool pool) throws Exception;
+
+    /**
+     * Bitmaps compressed with {@link Bitmap#compress}.
+     */
+    private static final class CompressedCodec extends BitmapCodec {
+        private final CompressFormat mFormat;
+        private final int mQuality;
+
+        CompressedCodec(int formatId, CompressFormat format, int quality) {
+            super(formatId);
+            mFormat = format;
+            mQuality = quality;
+        }
+
+        @Override
+        public byte[] encode(byte[] source, Bitmap bitmap) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    BitmapPool.sizeOf(bitmap) / 4);
+            if (!bitmap.compress(mFormat, mQuality, out)) {
+                return null;
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public Bitmap decode(byte[] data, int width, int height,
+                BitmapPool pool) {
+            return BitmapUtils.decodeSampledBitmapFromByteArray(data, 0,
+                    data.length, width, height, pool);
+        }
+    }
+
+    /**
+     * Bitmaps stored as their pixel buffer, preceded by a small header with
+     * their dimensions and configuration.
+     */
+    private static final class RawCodec extends BitmapCodec {
+        /** Width, height and configuration */
+        private static final int HEADER_SIZE = 3 * 4;
+
+        RawCodec(int formatId) {
+            super(formatId);
+        }
+
+        @Override
+        public byte[] encode(byte[] source, Bitmap bitmap) {
+            final Bitmap.Config config = bitmap.getConfig();
+            if (config == null) {
+                // Unknown pixel format, can't restore it
+                return null;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                    + BitmapPool.sizeOf(bitmap));
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(config.ordinal());
+            bitmap.copyPixelsToBuffer(buffer);
+            return buffer.array();
+        }
+
+        @Override
+        public Bitmap decode(byte[] data, int width, int height,
+                BitmapPool pool) {
+            if (data.length < HEADER_SIZE) {
+                return null;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            final int storedWidth = buffer.getInt();
+            final int storedHeight = buffer.getInt();
+            final int configOrdinal = buffer.getInt();
+            final Bitmap.Config[] configs = Bitmap.Config.values();
+            if (storedWidth <= 0 || storedHeight <= 0 || configOrdinal < 0
+                    || configOrdinal >= configs.length) {
+                return null;
+            }
+            final Bitmap.Config config = configs[configOrdinal];
+
+            Bitmap bitmap = pool != null ? pool.get(storedWidth,
+                    storedHeight, config) : null;
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(storedWidth, storedHeight, config);
+            }
+            if (buffer.remaining() < BitmapPool.sizeOf(bitmap)) {
+                // Truncated entry
+                if (pool != null) {
+                    pool.put(bitmap);
+                } else {
+                    bitmap.recycle();
+                }
+                return null;
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        }
+    }
+}
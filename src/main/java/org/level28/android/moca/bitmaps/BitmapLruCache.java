@@ -20,24 +20,40 @@ package org.level28.android.moca.bitmaps;
 
 import java.util.Map.Entry;
 
-import org.level28.android.moca.util.LruCache;
+import org.level28.android.moca.util.StripedLruCache;
 
 import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 
 /**
- * Specialized {@link LruCache} for bitmaps.
+ * Specialized {@link StripedLruCache} for bitmaps.
  * 
  * @author Chris Banes
  */
-public class BitmapLruCache extends LruCache<String, BitmapWrapper> {
+public class BitmapLruCache extends StripedLruCache<String, BitmapWrapper> {
 
     static final float DEFAULT_CACHE_SIZE = 1f / 8f;
 
     private static final float MAX_CACHE_SIZE = 1f;
     private static final int MEGABYTE = 1024 * 1024;
 
+    /** Size of the reuse pool, relative to the size of the cache */
+    private static final float POOL_SIZE = 1f / 4f;
+
+    /** Typical entry size, used to size the frequency sketch */
+    private static final int AVERAGE_ENTRY_SIZE = 16 * 1024;
+
+    /**
+     * Largest bitmap which must fit in a single segment: a square ARGB_8888
+     * bitmap of the largest size class
+     */
+    static final int LARGEST_ENTRY_SIZE = AbstractBitmapLoader.LARGEST_SIZE_CLASS
+            * AbstractBitmapLoader.LARGEST_SIZE_CLASS * 4;
+
+    /** Pool of bitmaps evicted from this cache */
+    private final BitmapPool mPool;
+
     public BitmapLruCache(Context context) {
         this(context, DEFAULT_CACHE_SIZE);
     }
@@ -48,7 +64,18 @@ public class BitmapLruCache extends LruCache<String, BitmapWrapper> {
     }
 
     public BitmapLruCache(int maxSize) {
-        super(maxSize);
+        super(maxSize, getConcurrencyLevel(maxSize));
+        mPool = new BitmapPool(Math.round(maxSize * POOL_SIZE));
+        // Don't let one-off avatars flush banners and frequent avatars
+        enableFrequencyAdmission(Math.max(maxSize / AVERAGE_ENTRY_SIZE, 1));
+    }
+
+    /**
+     * Get the pool holding bitmaps evicted from this cache which are no
+     * longer displayed.
+     */
+    public BitmapPool getBitmapPool() {
+        return mPool;
     }
 
     @Override
@@ -63,15 +90,23 @@ public class BitmapLruCache extends LruCache<String, BitmapWrapper> {
     }
 
     /**
-     * Convenience wrapper around {@link LruCache#put(String, BitmapWrapper)}
+     * Convenience wrapper around {@link #put(String, BitmapWrapper)}
      */
     public BitmapWrapper put(final BitmapWrapper newValue) {
         return put(newValue.getKey(), newValue);
     }
 
+    /**
+     * Cache a bitmap, unless the admission policy rejects it.
+     * <p>
+     * Rejected bitmaps are released right away if nobody is displaying them,
+     * so views should take their reference <em>before</em> caching.
+     */
     @Override
     public BitmapWrapper put(String key, BitmapWrapper value) {
-        // Increment the cache reference counter
+        // Increment the cache reference counter and hand the bitmap over to
+        // the pool once it's no longer used
+        value.setPool(mPool);
         value.setCached(true);
         return super.put(key, value);
     }
@@ -79,7 +114,8 @@ public class BitmapLruCache extends LruCache<String, BitmapWrapper> {
     @Override
     protected void entryRemoved(boolean evicted, String key,
             BitmapWrapper oldValue, BitmapWrapper newValue) {
-        // Decrement the cache reference counter
+        // Decrement the cache reference counter (the bitmap will be pooled if
+        // no view is displaying it)
         if (oldValue != null) {
             oldValue.setCached(false);
         }
@@ -98,6 +134,17 @@ public class BitmapLruCache extends LruCache<String, BitmapWrapper> {
                 remove(entry.getKey());
             }
         }
+        // Memory is tight, don't hold on to unused bitmaps either
+        mPool.clear();
+    }
+
+    /**
+     * Use fewer segments on small heaps, so that each of them can still hold
+     * a bitmap of the largest size class.
+     */
+    static int getConcurrencyLevel(int maxSize) {
+        return Math.max(1, Math.min(DEFAULT_CONCURRENCY_LEVEL, maxSize
+                / LARGEST_ENTRY_SIZE));
     }
 
     private static int getHeapSize(Context context) {
@@ -0,0 +1,155 @@
+// @formatter:off
+/*
+ * BitmapPool.java - pool of reusable bitmaps
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.bitmaps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.level28.android.moca.BuildConfig;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Pool of unused {@link Bitmap}s, bucketed by size and configuration.
+ * <p>
+ * Bitmaps released by {@link BitmapWrapper} end up here instead of being
+ * recycled, so that their pixel memory can be reused through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap inBitmap} or as the
+ * target of a drawing operation. Before Honeycomb bitmaps can't be reused and
+ * everything offered to the pool is recycled right away.
+ * <p>
+ * This class is thread safe.
+ * 
+ * @author Matteo Panella
+ */
+public final class BitmapPool {
+    private static final String LOG_TAG = "BitmapPool";
+
+    /** Maximum size of all pooled bitmaps, in bytes */
+    private final int mMaxSize;
+
+    /** Current size of all pooled bitmaps, in bytes */
+    private int mSize;
+
+    /** Unused bitmaps, bucketed by size and configuration */
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets = Maps.newHashMap();
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Check if bitmaps can be reused on this device.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Take an unused bitmap of the given size and configuration out of the
+     * pool.
+     * <p>
+     * The returned bitmap still holds its old pixels.
+     * 
+     * @return a mutable bitmap, or {@code null} if there is none available
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        synchronized (this) {
+            final ArrayList<Bitmap> bucket = mBuckets.get(bucketKey(width,
+                    height, config));
+            if (bucket == null || bucket.isEmpty()) {
+                return null;
+            }
+            final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+            mSize -= sizeOf(bitmap);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Return an unused bitmap to the pool.
+     * <p>
+     * The caller must not touch {@code bitmap} afterwards: it is either handed
+     * to someone else or recycled.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        final int size = sizeOf(bitmap);
+        synchronized (this) {
+            if (isSupported() && bitmap.isMutable()
+                    && bitmap.getConfig() != null && mSize + size <= mMaxSize) {
+                final Long key = bucketKey(bitmap.getWidth(),
+                        bitmap.getHeight(), bitmap.getConfig());
+                ArrayList<Bitmap> bucket = mBuckets.get(key);
+                if (bucket == null) {
+                    bucket = Lists.newArrayList();
+                    mBuckets.put(key, bucket);
+                }
+                bucket.add(bitmap);
+                mSize += size;
+                return;
+            }
+        }
+
+        // Can't (or won't) reuse it
+        if (BuildConfig.DEBUG) {
+            Log.v(LOG_TAG, "Recycling " + bitmap.getWidth() + "x"
+                    + bitmap.getHeight() + " bitmap");
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Recycle all pooled bitmaps.
+     */
+    public void clear() {
+        final ArrayList<Bitmap> bitmaps = Lists.newArrayList();
+        synchronized (this) {
+            for (ArrayList<Bitmap> bucket : mBuckets.values()) {
+                bitmaps.addAll(bucket);
+            }
+            mBuckets.clear();
+            mSize = 0;
+        }
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+    }
+
+    private static Long bucketKey(int width, int height, Bitmap.Config config) {
+        return Long.valueOf((long) width << 32 | (long) height << 3
+                | config.ordinal());
+    }
+
+    static int sizeOf(Bitmap bitmap) {
+        // Bitmap.getByteCount() is API Level 12+
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
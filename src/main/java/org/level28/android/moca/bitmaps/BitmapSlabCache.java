@@ -0,0 +1,354 @@
+// @formatter:off
+/*
+ * BitmapSlabCache.java - memory-mapped cache of raw bitmap pixels
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.bitmaps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.level28.android.moca.BuildConfig;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Cache of raw bitmap pixels, stored in fixed-size slots of a single
+ * memory-mapped file.
+ * <p>
+ * All cached bitmaps share the same dimensions and configuration (i.e. those
+ * of the first bitmap ever stored), which makes the file a simple slab of
+ * equally sized slots. Restoring a bitmap is a plain copy from the mapping
+ * into a (possibly pooled) bitmap, with no decompression involved. Bitmaps
+ * with different geometry are not cached, unless the slab has never been hit
+ * since it was opened, in which case it is formatted again for the new
+ * geometry.
+ * <p>
+ * The file is opened lazily on first access, so that no I/O happens on the
+ * calling thread of the constructor. Least recently used slots are reused
+ * when the slab is full.
+ * <p>
+ * This class is thread safe.
+ * 
+ * @author Matteo Panella
+ */
+final class BitmapSlabCache {
+    private static final String LOG_TAG = "BitmapSlabCache";
+
+    private static final int MAGIC = 0x4d6f6361;
+    private static final int VERSION = 1;
+
+    /** Magic, version, width, height, configuration, pixel size */
+    private static final int FILE_HEADER_SIZE = 6 * 4;
+
+    /** Length of cache keys (hex-encoded SHA-1) */
+    private static final int KEY_LENGTH = 40;
+
+    /** In-use marker and key */
+    private static final int SLOT_HEADER_SIZE = 4 + KEY_LENGTH;
+
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_IN_USE = 1;
+
+    private final File mFile;
+    private final int mMaxSize;
+
+    private boolean mOpened;
+    private boolean mClosed;
+
+    /** Slab mapping, {@code null} if the slab is unusable or unformatted */
+    private MappedByteBuffer mBuffer;
+
+    private int mWidth;
+    private int mHeight;
+    private Bitmap.Config mConfig;
+    private int mPixelSize;
+    private int mSlotSize;
+
+    /** Slot index by cache key, in access order */
+    private final LinkedHashMap<String, Integer> mIndex = new LinkedHashMap<String, Integer>(
+            16, 0.75f, true);
+
+    private final ArrayList<Integer> mFreeSlots = Lists.newArrayList();
+
+    /** Number of hits since the slab has been opened */
+    private int mHits;
+
+    /**
+     * Create a new slab cache.
+     * 
+     * @param file
+     *            the slab file
+     * @param maxSize
+     *            maximum size of the slab file, in bytes
+     */
+    BitmapSlabCache(File file, int maxSize) {
+        mFile = file;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Restore a cached bitmap.
+     * 
+     * @param key
+     *            the cache key of the bitmap
+     * @param pool
+     *            pool to take the restored bitmap from, may be {@code null}
+     * @return the restored bitmap, or {@code null} on cache misses
+     */
+    synchronized Bitmap get(String key, BitmapPool pool) {
+        ensureOpen();
+        if (mBuffer == null) {
+            return null;
+        }
+        final Integer slot = mIndex.get(key);
+        if (slot == null) {
+            return null;
+        }
+
+        Bitmap bitmap = pool != null ? pool.get(mWidth, mHeight, mConfig)
+                : null;
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(mWidth, mHeight, mConfig);
+        }
+        if (BitmapPool.sizeOf(bitmap) != mPixelSize) {
+            // Should never happen, but don't read past the slot
+            bitmap.recycle();
+            return null;
+        }
+
+        final ByteBuffer pixels = mBuffer.duplicate();
+        final int start = slotOffset(slot) + SLOT_HEADER_SIZE;
+        pixels.limit(start + mPixelSize).position(start);
+        bitmap.copyPixelsFromBuffer(pixels);
+        mHits++;
+        return bitmap;
+    }
+
+    /**
+     * Store the pixels of a bitmap.
+     * <p>
+     * The bitmap must not be modified while this method runs.
+     */
+    synchronized void put(String key, Bitmap bitmap) {
+        final Bitmap.Config config = bitmap.getConfig();
+        if (config == null || key.length() != KEY_LENGTH) {
+            return;
+        }
+
+        ensureOpen();
+        if (mClosed) {
+            return;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (mBuffer == null || width != mWidth || height != mHeight
+                || config != mConfig) {
+            if (mBuffer != null && mHits > 0) {
+                // The current geometry is still in use
+                return;
+            }
+            format(width, height, config, BitmapPool.sizeOf(bitmap));
+            if (mBuffer == null) {
+                return;
+            }
+        }
+        if (mIndex.containsKey(key)) {
+            return;
+        }
+
+        final int slot;
+        if (!mFreeSlots.isEmpty()) {
+            slot = mFreeSlots.remove(mFreeSlots.size() - 1);
+        } else {
+            // Reuse the least recently used slot
+            final Iterator<Integer> it = mIndex.values().iterator();
+            slot = it.next();
+            it.remove();
+        }
+
+        // Mark the slot as free while it's being written, so that a crash
+        // half-way through doesn't leave garbage behind
+        final int offset = slotOffset(slot);
+        mBuffer.putInt(offset, SLOT_FREE);
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            mBuffer.put(offset + 4 + i, (byte) key.charAt(i));
+        }
+        final ByteBuffer pixels = mBuffer.duplicate();
+        final int start = offset + SLOT_HEADER_SIZE;
+        pixels.limit(start + mPixelSize).position(start);
+        bitmap.copyPixelsToBuffer(pixels);
+        mBuffer.putInt(offset, SLOT_IN_USE);
+        mIndex.put(key, slot);
+    }
+
+    /**
+     * Flush the slab to disk and release it.
+     */
+    synchronized void close() {
+        if (mBuffer != null) {
+            mBuffer.force();
+            mBuffer = null;
+        }
+        mIndex.clear();
+        mFreeSlots.clear();
+        mClosed = true;
+    }
+
+    private int slotOffset(int slot) {
+        return FILE_HEADER_SIZE + slot * mSlotSize;
+    }
+
+    /**
+     * Map an existing slab file and rebuild its index.
+     */
+    private void ensureOpen() {
+        if (mOpened || mClosed) {
+            return;
+        }
+        mOpened = true;
+        if (!mFile.isFile()) {
+            return;
+        }
+
+        try {
+            final MappedByteBuffer buffer = map(mFile, mFile.length());
+            if (buffer.capacity() < FILE_HEADER_SIZE
+                    || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION) {
+                return;
+            }
+            final int width = buffer.getInt(8);
+            final int height = buffer.getInt(12);
+            final int configOrdinal = buffer.getInt(16);
+            final int pixelSize = buffer.getInt(20);
+            final Bitmap.Config[] configs = Bitmap.Config.values();
+            if (width <= 0 || height <= 0 || pixelSize <= 0
+                    || configOrdinal < 0 || configOrdinal >= configs.length) {
+                return;
+            }
+
+            setGeometry(buffer, width, height, configs[configOrdinal],
+                    pixelSize);
+            final int slotCount = (buffer.capacity() - FILE_HEADER_SIZE)
+                    / mSlotSize;
+            final char[] key = new char[KEY_LENGTH];
+            for (int slot = 0; slot < slotCount; slot++) {
+                final int offset = slotOffset(slot);
+                if (buffer.getInt(offset) == SLOT_IN_USE) {
+                    for (int i = 0; i < KEY_LENGTH; i++) {
+                        key[i] = (char) buffer.get(offset + 4 + i);
+                    }
+                    mIndex.put(new String(key), slot);
+                } else {
+                    mFreeSlots.add(slot);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error while opening bitmap slab", e);
+            mBuffer = null;
+            mIndex.clear();
+            mFreeSlots.clear();
+        }
+    }
+
+    /**
+     * Discard all cached bitmaps and lay out the slab for the given geometry.
+     */
+    private void format(int width, int height, Bitmap.Config config,
+            int pixelSize) {
+        mBuffer = null;
+        mIndex.clear();
+        mFreeSlots.clear();
+        mHits = 0;
+
+        final int slotCount = (mMaxSize - FILE_HEADER_SIZE)
+                / (SLOT_HEADER_SIZE + pixelSize);
+        if (slotCount <= 0) {
+            return;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "Formatting bitmap slab for " + slotCount + " "
+                    + width + "x" + height + " bitmaps");
+        }
+
+        try {
+            final File parent = mFile.getParentFile();
+            if (parent != null && !parent.isDirectory()) {
+                parent.mkdirs();
+            }
+            final MappedByteBuffer buffer = map(mFile, FILE_HEADER_SIZE
+                    + (long) slotCount * (SLOT_HEADER_SIZE + pixelSize));
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, width);
+            buffer.putInt(12, height);
+            buffer.putInt(16, config.ordinal());
+            buffer.putInt(20, pixelSize);
+            setGeometry(buffer, width, height, config, pixelSize);
+            for (int slot = slotCount - 1; slot >= 0; slot--) {
+                buffer.putInt(slotOffset(slot), SLOT_FREE);
+                mFreeSlots.add(slot);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error while formatting bitmap slab", e);
+            mBuffer = null;
+            mFreeSlots.clear();
+        }
+    }
+
+    private void setGeometry(MappedByteBuffer buffer, int width, int height,
+            Bitmap.Config config, int pixelSize) {
+        mBuffer = buffer;
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mPixelSize = pixelSize;
+        mSlotSize = SLOT_HEADER_SIZE + pixelSize;
+    }
+
+    private static MappedByteBuffer map(File file, long length)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != length) {
+                raf.setLength(length);
+            }
+            // The mapping stays valid after the file has been closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    length);
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // Swallow the exception
+            }
+        }
+    }
+}
@@ -22,11 +22,13 @@
 package org.level28.android.moca.bitmaps;
 
 import static android.graphics.Bitmap.Config.ARGB_8888;
+import static android.graphics.Color.TRANSPARENT;
 import static android.graphics.Color.WHITE;
 import static android.graphics.PorterDuff.Mode.SRC_IN;
 
 import java.io.File;
 
+import android.annotation.TargetApi;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -35,6 +37,7 @@ import android.graphics.Paint;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Build;
 
 /**
  * Helper class for resampling images from the web.
@@ -146,6 +149,24 @@ public final class BitmapUtils {
      */
     public static Bitmap decodeSampledBitmapFromByteArray(byte[] data,
             int offset, int length, int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromByteArray(data, offset, length,
+                reqWidth, reqHeight, null);
+    }
+
+    /**
+     * Decode a {@link Bitmap} from raw bytes of compressed image data, scaling
+     * it to a desired size and reusing a pooled bitmap if possible.
+     * 
+     * @param pool
+     *            pool of reusable bitmaps, or {@code null}
+     * @return The decoded and scaled bitmap, or {@code null} if the image data
+     *         could not be decoded
+     * @see BitmapUtils#decodeSampledBitmapFromByteArray(byte[], int, int, int,
+     *      int)
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data,
+            int offset, int length, int reqWidth, int reqHeight,
+            BitmapPool pool) {
         // Pretty much like decodeSampleBitmapFromResource
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inDither = false;
@@ -158,9 +179,53 @@ public final class BitmapUtils {
 
         // Do it for real this time...
         options.inJustDecodeBounds = false;
+        if (pool != null && BitmapPool.isSupported()) {
+            final Bitmap reused = decodeReusing(data, offset, length,
+                    options, pool);
+            if (reused != null) {
+                return reused;
+            }
+        }
         return BitmapFactory.decodeByteArray(data, offset, length, options);
     }
 
+    /**
+     * Try to decode straight into a pooled bitmap.
+     * <p>
+     * Before KitKat, {@code inBitmap} only works with an {@code inSampleSize}
+     * of 1 and a target bitmap of the exact same size.
+     * 
+     * @return the decoded bitmap, or {@code null} if no suitable bitmap is
+     *         available for reuse
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bitmap decodeReusing(byte[] data, int offset, int length,
+            BitmapFactory.Options options, BitmapPool pool) {
+        // Make sure the result can go back to the pool
+        options.inMutable = true;
+        if (options.inSampleSize != 1 || options.outWidth <= 0
+                || options.outHeight <= 0) {
+            return null;
+        }
+
+        final Bitmap candidate = pool.get(options.outWidth, options.outHeight,
+                options.inPreferredConfig);
+        if (candidate == null) {
+            return null;
+        }
+
+        options.inBitmap = candidate;
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder refused the bitmap, give it back
+            pool.put(candidate);
+            return null;
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+
     public static Bitmap decodeSampledBitmapFromFile(File file, int reqWidth,
             int reqHeight) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -187,10 +252,38 @@ public final class BitmapUtils {
      * @return the original bitmap with its corners rounded by radius pixels
      */
     public static Bitmap roundCorners(final Bitmap source, final float radius) {
+        return roundCorners(source, radius, null);
+    }
+
+    /**
+     * Round the corners of a {@link Bitmap}, drawing into a pooled bitmap if
+     * possible.
+     * <p>
+     * The source bitmap is returned to the pool once done.
+     * 
+     * @param source
+     *            Raw bitmap
+     * @param radius
+     *            radius of corners (in pixels)
+     * @param pool
+     *            pool of reusable bitmaps, or {@code null}
+     * @return the original bitmap with its corners rounded by radius pixels
+     */
+    public static Bitmap roundCorners(final Bitmap source, final float radius,
+            final BitmapPool pool) {
         final int width = source.getWidth();
         final int height = source.getHeight();
 
-        final Bitmap output = Bitmap.createBitmap(width, height, ARGB_8888);
+        Bitmap output = null;
+        if (pool != null) {
+            output = pool.get(width, height, ARGB_8888);
+        }
+        if (output == null) {
+            output = Bitmap.createBitmap(width, height, ARGB_8888);
+        } else {
+            // Get rid of whatever the previous owner left behind
+            output.eraseColor(TRANSPARENT);
+        }
         Canvas canvas = new Canvas(output);
 
         final Paint paint = new Paint();
@@ -205,7 +298,11 @@ public final class BitmapUtils {
         paint.setXfermode(new PorterDuffXfermode(SRC_IN));
         canvas.drawBitmap(source, rect, rect, paint);
 
-        source.recycle();
+        if (pool != null) {
+            pool.put(source);
+        } else {
+            source.recycle();
+        }
 
         return output;
     }
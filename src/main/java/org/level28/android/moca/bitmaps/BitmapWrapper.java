@@ -44,6 +44,12 @@ public class BitmapWrapper {
      */
     private int mCacheRefCount;
 
+    /** Where the bitmap goes once it's no longer referenced (if anywhere) */
+    private BitmapPool mPool;
+
+    /** Has the bitmap been released to {@link #mPool}? */
+    private boolean mReleased;
+
     public BitmapWrapper(final Bitmap bitmap) {
         this(null, bitmap);
     }
@@ -99,8 +105,19 @@ public class BitmapWrapper {
      * 
      * @return true if the bitmap has been recycled, false otherwise
      */
-    public boolean hasValidBitmap() {
-        return !mBitmap.isRecycled();
+    public synchronized boolean hasValidBitmap() {
+        return !mReleased && !mBitmap.isRecycled();
+    }
+
+    /**
+     * Set the pool that will receive the wrapped bitmap once it is no longer
+     * referenced, instead of recycling it.
+     * 
+     * @param pool
+     *            the target pool, or {@code null} to recycle the bitmap
+     */
+    public synchronized void setPool(final BitmapPool pool) {
+        mPool = pool;
     }
 
     /**
@@ -110,7 +127,7 @@ public class BitmapWrapper {
      *            true if the bitmap is currently being cached, false otherwise
      * @see #setBeingUsed(boolean)
      */
-    public void setCached(boolean cached) {
+    public synchronized void setCached(boolean cached) {
         if (cached) {
             mCacheRefCount++;
         } else {
@@ -126,7 +143,7 @@ public class BitmapWrapper {
      *            true if the bitmap is currently being used, false otherwise
      * @see #setCached(boolean)
      */
-    public void setBeingUsed(boolean used) {
+    public synchronized void setBeingUsed(boolean used) {
         if (used) {
             mImageViewRefCount++;
         } else {
@@ -141,10 +158,17 @@ public class BitmapWrapper {
     private void checkRefCount() {
         if (mCacheRefCount <= 0 && mImageViewRefCount <= 0 && hasValidBitmap()) {
             if (BuildConfig.DEBUG) {
-                Log.d(LOG_TAG, "Recycling bitmap with key: "
+                Log.d(LOG_TAG, "Releasing bitmap with key: "
                         + (mKey == null ? "(null)" : mKey));
             }
-            mBitmap.recycle();
+            if (mPool != null) {
+                // The pool may hand the bitmap out again, make sure nobody
+                // else gets to draw it through this wrapper
+                mReleased = true;
+                mPool.put(mBitmap);
+            } else {
+                mBitmap.recycle();
+            }
         }
     }
 }
@@ -29,6 +29,7 @@ import org.level28.android.moca.MocaApp;
 import org.level28.android.moca.R;
 import org.level28.android.moca.ui.CacheableImageView;
 import org.level28.android.moca.util.SafeAsyncTask;
+import org.level28.android.moca.util.TaskGroup;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -53,12 +54,24 @@ public final class SimpleBitmapLoader {
     /** Parent context */
     private final Context mContext;
 
+    /** All tasks started by this loader */
+    private final TaskGroup mTasks = new TaskGroup();
+
     public SimpleBitmapLoader(Context context) {
         mContext = context;
         mCache = MocaApp.getApplication(mContext).getBitmapCache();
         mPlaceholder = context.getResources().getDrawable(R.drawable.empty);
     }
 
+    /**
+     * Cancel all loads in progress.
+     * <p>
+     * Loads started afterwards are cancelled right away.
+     */
+    public void release() {
+        mTasks.close();
+    }
+
     /**
      * Asynchronously load a local bitmap resource into the given view.
      * 
@@ -116,8 +129,11 @@ public final class SimpleBitmapLoader {
 
         public BitmapLoaderTask(Context context, CacheableImageView view,
                 String key, int resId) {
-            // Use the default multi-threaded executor
-            super(DEFAULT_EXECUTOR);
+            // Use the priority executor so that the newest requests run first
+            super(PRIORITY_EXECUTOR);
+            // Nothing to wait for on the UI thread, keep the pool busy
+            asyncCallbacks(true);
+            group(mTasks);
 
             mContext = context.getApplicationContext();
             mView = new WeakReference<CacheableImageView>(view);
@@ -141,11 +157,12 @@ public final class SimpleBitmapLoader {
         @Override
         protected void onSuccess(BitmapWrapper result) throws Exception {
             if (result != null) {
-                mCache.put(result);
+                // Display it before caching, it might not be admitted
                 final CacheableImageView view = mView.get();
                 if (view != null && mKey.equals(view.getTag(R.id.iv_banner))) {
                     setImage(result, view);
                 }
+                mCache.put(result);
             }
         }
     }
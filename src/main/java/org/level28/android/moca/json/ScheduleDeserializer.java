@@ -36,125 +36,333 @@ import org.level28.android.moca.model.Session;
 import android.text.TextUtils;
 import android.text.format.Time;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.google.common.collect.Maps;
 
 /**
  * Deserializer for TMA-1 schedule API.
+ * <p>
+ * The schedule is parsed as a stream of tokens rather than as a
+ * {@code JsonNode} tree: each {@link Session} is built and handed over as soon
+ * as its JSON object is closed, so that only one session at a time has to be
+ * kept in memory by the parser.
+ * <p>
+ * The same format is used by the delta feed, where a session may also be
+ * replaced by a tombstone: an object containing only its {@code id} and a
+ * {@code deleted} attribute set to {@code true}.
  * 
  * @author Matteo Panella
  */
 public class ScheduleDeserializer extends
         AbstractJsonDeserializer<Map<String, Session>> {
 
+    /**
+     * Callback interface for streaming deserialization.
+     */
+    public interface SessionCallback {
+        /**
+         * Called whenever a session has been completely parsed.
+         * 
+         * @param session
+         *            the session which has just been parsed
+         * @throws JsonDeserializerException
+         *             if the session should be rejected, aborting the
+         *             deserialization
+         */
+        public void onSessionParsed(final Session session)
+                throws JsonDeserializerException;
+    }
+
+    /**
+     * Callback interface for streaming deserialization of delta feeds.
+     */
+    public interface DeltaCallback extends SessionCallback {
+        /**
+         * Called whenever a session tombstone has been parsed.
+         * 
+         * @param sessionId
+         *            the id of the deleted session
+         * @throws JsonDeserializerException
+         *             if the tombstone should be rejected, aborting the
+         *             deserialization
+         */
+        public void onSessionDeleted(final String sessionId)
+                throws JsonDeserializerException;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This builds the whole schedule in memory: use
+     * {@link #fromInputStream(InputStream, SessionCallback)} to process
+     * sessions one at a time.
+     */
     @Override
     public Map<String, Session> fromInputStream(InputStream in)
             throws JsonDeserializerException {
-        JsonNode root;
+        final HashMap<String, Session> result = Maps.newHashMap();
+
+        fromInputStream(in, new SessionCallback() {
+            @Override
+            public void onSessionParsed(Session session) {
+                result.put(session.getId(), session);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Deserialize a JSON schedule from the given {@link InputStream}, passing
+     * each session to {@code callback} as soon as it has been parsed.
+     * 
+     * @param in
+     *            the input stream from which the JSON document should be parsed
+     * @param callback
+     *            the callback which will receive parsed sessions
+     * @throws JsonDeserializerException
+     *             if the JSON document is invalid
+     */
+    public void fromInputStream(InputStream in, SessionCallback callback)
+            throws JsonDeserializerException {
+        parse(in, callback, null);
+    }
+
+    /**
+     * Deserialize a JSON delta feed from the given {@link InputStream},
+     * passing each updated session and each tombstone to {@code callback} as
+     * soon as they have been parsed.
+     * 
+     * @param in
+     *            the input stream from which the JSON document should be parsed
+     * @param callback
+     *            the callback which will receive parsed sessions and
+     *            tombstones
+     * @throws JsonDeserializerException
+     *             if the JSON document is invalid
+     */
+    public void deltaFromInputStream(InputStream in, DeltaCallback callback)
+            throws JsonDeserializerException {
+        parse(in, callback, callback);
+    }
+
+    private void parse(InputStream in, SessionCallback callback,
+            DeltaCallback deltaCallback) throws JsonDeserializerException {
+        JsonParser parser = null;
         try {
-            root = sJsonMapper.readTree(in);
+            parser = sJsonMapper.getFactory().createParser(in);
+
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonDeserializerException("Root node is not an array");
+            }
+
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new JsonDeserializerException(
+                            "Unexpected end of input");
+                }
+                final SessionFields fields = parseSession(parser, token);
+                if (fields.deleted && deltaCallback != null) {
+                    // Tombstones only need a valid session id
+                    if (fields.id == null || "".equals(fields.id)) {
+                        throw new JsonDeserializerException(
+                                "'id' is missing or invalid");
+                    }
+                    deltaCallback.onSessionDeleted(fields.id);
+                } else {
+                    callback.onSessionParsed(buildSession(fields));
+                }
+            }
         } catch (IOException e) {
             throw new JsonDeserializerException("Internal Jackson error", e);
+        } finally {
+            if (parser != null) {
+                try {
+                    parser.close();
+                } catch (IOException e) {
+                    // Swallow the exception
+                }
+            }
         }
+    }
 
-        if (!root.isArray()) {
-            throw new JsonDeserializerException("Root node is not an array");
+    /**
+     * Parse the raw fields of a single session object.
+     * <p>
+     * Fields are collected as they are encountered and validated only once the
+     * enclosing object has been closed, in the same order used by the original
+     * tree-based parser, so that error reporting is not affected by field
+     * ordering inside the document.
+     */
+    private static SessionFields parseSession(final JsonParser parser,
+            final JsonToken startToken) throws IOException,
+            JsonDeserializerException {
+        // Basic sanity checks
+        if (startToken == JsonToken.VALUE_NULL) {
+            throw new JsonDeserializerException("null objectRoot");
+        }
+        if (startToken != JsonToken.START_OBJECT) {
+            throw new JsonDeserializerException(
+                    "objectRoot is not a JSON object");
         }
 
-        HashMap<String, Session> result = Maps.newHashMap();
+        final SessionFields fields = new SessionFields();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+
+            if ("id".equals(fieldName)) {
+                fields.id = textOrNull(parser, token);
+            } else if ("title".equals(fieldName)) {
+                fields.title = textOrNull(parser, token);
+            } else if ("day".equals(fieldName)) {
+                if (token == JsonToken.VALUE_NUMBER_INT
+                        && parser.getNumberType() == JsonParser.NumberType.INT) {
+                    fields.day = Integer.valueOf(parser.getIntValue());
+                } else {
+                    fields.day = null;
+                    parser.skipChildren();
+                }
+            } else if ("start".equals(fieldName)) {
+                fields.start = textOrNull(parser, token);
+            } else if ("end".equals(fieldName)) {
+                fields.end = textOrNull(parser, token);
+            } else if ("hosts".equals(fieldName)) {
+                parseHosts(parser, token, fields);
+            } else if ("lang".equals(fieldName)) {
+                fields.lang = textOrNull(parser, token);
+            } else if ("abstract".equals(fieldName)) {
+                fields.hasAbstract = true;
+                fields.sessionAbstract = textOrNull(parser, token);
+            } else if ("deleted".equals(fieldName)) {
+                fields.deleted = token == JsonToken.VALUE_TRUE;
+                parser.skipChildren();
+            } else {
+                // Unknown field, ignore it
+                parser.skipChildren();
+            }
+        }
 
-        for (JsonNode node : root) {
-            Session session = parseSession(node);
-            result.put(session.getId(), session);
+        if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+            throw new JsonDeserializerException("Unexpected end of input");
         }
 
-        return result;
+        return fields;
     }
 
-    private static Session parseSession(final JsonNode objectRoot)
-            throws JsonDeserializerException {
-        // Basic sanity checks
-        if (objectRoot == null || objectRoot.isNull()) {
-            throw new JsonDeserializerException("null objectRoot");
+    /**
+     * Parse the {@code hosts} array of a session.
+     */
+    private static void parseHosts(final JsonParser parser,
+            final JsonToken startToken, final SessionFields fields)
+            throws IOException, JsonDeserializerException {
+        fields.hosts = null;
+        fields.hostsValid = false;
+
+        if (startToken != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
         }
-        if (!objectRoot.isObject()) {
-            throw new JsonDeserializerException(
-                    "objectRoot is not a JSON object");
+
+        final ArrayList<String> hosts = new ArrayList<String>();
+        boolean valid = true;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == null) {
+                throw new JsonDeserializerException("Unexpected end of input");
+            }
+            final String host = textOrNull(parser, token);
+            if (host == null || "".equals(host)) {
+                valid = false;
+            } else {
+                hosts.add(host);
+            }
+        }
+
+        fields.hosts = hosts;
+        fields.hostsValid = valid;
+    }
+
+    /**
+     * Return the textual value of the current token, or {@code null} if it's
+     * not a string. Structured values are skipped entirely.
+     */
+    private static String textOrNull(final JsonParser parser,
+            final JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_STRING) {
+            return parser.getText();
         }
+        parser.skipChildren();
+        return null;
+    }
 
-        JsonNode node;
+    /**
+     * Validate the collected fields and turn them into a {@link Session}.
+     */
+    private static Session buildSession(final SessionFields fields)
+            throws JsonDeserializerException {
         Session result = new Session();
 
         try {
             // Session id (required)
-            node = objectRoot.path("id");
-            if (node.isMissingNode() || !node.isTextual()) {
+            if (fields.id == null) {
                 throw new JsonDeserializerException(
                         "'id' is missing or invalid");
             }
-            result.setId(node.textValue());
+            result.setId(fields.id);
 
             // Session title (required)
-            node = objectRoot.path("title");
-            if (node.isMissingNode() || !node.isTextual()) {
+            if (fields.title == null) {
                 throw new JsonDeserializerException(
                         "'title' is missing or invalid");
             }
-            result.setTitle(node.textValue());
+            result.setTitle(fields.title);
 
             // Session day (required)
-            node = objectRoot.path("day");
-            if (node.isMissingNode() || !node.isInt()) {
+            if (fields.day == null) {
                 throw new JsonDeserializerException(
                         "'day' is missing or invalid");
             }
-            result.setDay(node.asInt());
+            result.setDay(fields.day.intValue());
 
             // Session start time (required)
-            node = objectRoot.path("start");
-            if (node.isMissingNode() || !node.isTextual()) {
+            if (fields.start == null) {
                 throw new JsonDeserializerException(
                         "'start' is missing or invalid");
             }
-            result.setStartTime(parseTime(node.textValue()));
+            result.setStartTime(parseTime(fields.start));
 
             // Session end time (required)
-            node = objectRoot.path("end");
-            if (node.isMissingNode() || !node.isTextual()) {
+            if (fields.end == null) {
                 throw new JsonDeserializerException(
                         "'end' is missing or invalid");
             }
-            result.setEndTime(parseTime(node.textValue()));
+            result.setEndTime(parseTime(fields.end));
 
             // Session hosts (required)
-            node = objectRoot.path("hosts");
-            if (node.isMissingNode() || !node.isArray()) {
+            if (fields.hosts == null) {
                 throw new JsonDeserializerException(
                         "'hosts' is missing or invalid");
             }
-            final ArrayList<String> hosts = new ArrayList<String>(node.size());
-            for (JsonNode hostsSubNode : node) {
-                if (!hostsSubNode.isTextual()
-                        || "".equals(hostsSubNode.textValue())) {
-                    throw new JsonDeserializerException(
-                            "'hosts' children is not valid");
-                }
-                hosts.add(hostsSubNode.textValue());
+            if (!fields.hostsValid) {
+                throw new JsonDeserializerException(
+                        "'hosts' children is not valid");
             }
-            result.setHosts(TextUtils.join(", ", hosts));
+            result.setHosts(TextUtils.join(", ", fields.hosts));
 
             // Session language (required)
-            node = objectRoot.path("lang");
-            if (node.isMissingNode() || !node.isTextual()) {
+            if (fields.lang == null) {
                 throw new JsonDeserializerException(
                         "'lang' is missing or invalid");
             }
-            result.setLang(node.textValue());
+            result.setLang(fields.lang);
 
             // Session abstract (optional)
-            node = objectRoot.path("abstract");
-            if (!node.isMissingNode()) {
-                result.setSessionAbstract(node.textValue());
+            if (fields.hasAbstract) {
+                result.setSessionAbstract(fields.sessionAbstract);
             }
 
             return result;
@@ -165,6 +373,23 @@ public class ScheduleDeserializer extends
         }
     }
 
+    /**
+     * Raw session fields collected while streaming through a session object.
+     */
+    private static final class SessionFields {
+        String id;
+        String title;
+        Integer day;
+        String start;
+        String end;
+        ArrayList<String> hosts;
+        boolean hostsValid;
+        String lang;
+        boolean hasAbstract;
+        String sessionAbstract;
+        boolean deleted;
+    }
+
     /**
      * Pure Java reimplementation of {@link Time#parse3339(String)}.
      * <p>
@@ -21,6 +21,8 @@
 
 package org.level28.android.moca.provider;
 
+import java.util.List;
+
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -69,6 +71,31 @@ public class ScheduleContract {
         String SESSION_ABSTRACT = "session_abstract";
     }
 
+    interface SessionSearchColumns {
+        /**
+         * Excerpt of the matching text, with search hits wrapped in
+         * {@code <b>} tags. Only available on search URIs.
+         */
+        String SEARCH_SNIPPET = "search_snippet";
+    }
+
+    interface SyncStateColumns {
+        /** URL of the remote feed. */
+        String FEED_URL = "feed_url";
+        /** Entity tag returned by the server for the last full download. */
+        String FEED_ETAG = "feed_etag";
+        /**
+         * Last-Modified time returned by the server for the last full
+         * download, in milliseconds since the Epoch.
+         */
+        String FEED_LAST_MODIFIED = "feed_last_modified";
+        /**
+         * Opaque delta feed watermark returned by the server for the last
+         * download, if the server supports delta feeds.
+         */
+        String FEED_WATERMARK = "feed_watermark";
+    }
+
     public static final String CONTENT_AUTHORITY = "org.level28.android.moca";
 
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://"
@@ -77,12 +104,15 @@ public class ScheduleContract {
     private static final String PATH_SESSIONS = "sessions";
     private static final String PATH_AT = "at";
     private static final String PATH_DAY = "day";
+    private static final String PATH_SEARCH = "search";
+    private static final String PATH_SYNC_STATE = "sync_state";
+    private static final String PATH_TWEETS = "tweets";
 
     /**
      * A session.
      */
-    public static class Sessions implements SessionColumns, SyncColumns,
-            BaseColumns {
+    public static class Sessions implements SessionColumns,
+            SessionSearchColumns, SyncColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
                 .appendPath(PATH_SESSIONS).build();
 
@@ -95,6 +125,14 @@ public class ScheduleContract {
         public static final String DEFAULT_SORT = SESSION_START + " ASC,"
                 + SESSION_TITLE + " COLLATE NOCASE ASC";
 
+        /**
+         * Columns read by session lists. Day and time URIs queried with this
+         * projection and {@link #DEFAULT_SORT} are answered from the session
+         * indices alone.
+         */
+        public static final String[] LIST_PROJECTION = { _ID, SESSION_ID,
+                SESSION_TITLE, SESSION_START, SESSION_END, SESSION_HOSTS, };
+
         public static final String AT_TIME_SELECTION = SESSION_START
                 + " <= ? AND " + SESSION_END + " >= ?";
 
@@ -120,6 +158,27 @@ public class ScheduleContract {
                     .appendPath(String.valueOf(day)).build();
         }
 
+        /**
+         * Build a URI for a full-text search over session titles, hosts and
+         * abstracts.
+         * <p>
+         * Every word in {@code query} is matched as a prefix, so this URI is
+         * suitable for search-as-you-type. Results are ranked by relevance
+         * unless an explicit sort order is given.
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH)
+                    .appendPath(query).build();
+        }
+
+        /**
+         * Check if the given URI was built by {@link #buildSearchUri(String)}.
+         */
+        public static boolean isSearchUri(Uri uri) {
+            final List<String> segments = uri.getPathSegments();
+            return segments.size() == 3 && PATH_SEARCH.equals(segments.get(1));
+        }
+
         public static String getSessionId(Uri uri) {
             return uri.getPathSegments().get(1);
         }
@@ -129,6 +188,39 @@ public class ScheduleContract {
         }
     }
 
+    /**
+     * HTTP cache validators and delta feed watermarks for remote feeds.
+     */
+    public static class SyncState implements SyncStateColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SYNC_STATE).build();
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.moca.syncstate";
+
+        public static final String FEED_URL_SELECTION = FEED_URL + " = ?";
+    }
+
+    /**
+     * Cached tweets from the MOCA Twitter stream.
+     * <p>
+     * Columns are listed in {@link org.level28.android.moca.model.Tweet.Contract}
+     * and {@link #_ID} is the tweet id, so that newer tweets always have a
+     * greater {@link #_ID}.
+     */
+    public static class Tweets implements BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_TWEETS).build();
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.moca.tweet";
+
+        /**
+         * Default ORDER BY clause (newest first)
+         */
+        public static final String DEFAULT_SORT = _ID + " DESC";
+
+        public static final String OLDER_THAN_SELECTION = _ID + " < ?";
+    }
+
     private ScheduleContract() {
         // Don't new me
     }
@@ -21,13 +21,20 @@
 
 package org.level28.android.moca.provider;
 
+import java.io.File;
+
 import org.level28.android.moca.BuildConfig;
+import org.level28.android.moca.model.Tweet;
 import org.level28.android.moca.provider.ScheduleContract.SessionColumns;
+import org.level28.android.moca.provider.ScheduleContract.Sessions;
 import org.level28.android.moca.provider.ScheduleContract.SyncColumns;
+import org.level28.android.moca.provider.ScheduleContract.SyncStateColumns;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 import android.util.Log;
 
@@ -40,23 +47,84 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
 
     private static final String LOG_TAG = "ScheduleDatabase";
 
-    private static final String DATABASE_NAME = "schedule.db";
+    static final String DATABASE_NAME = "schedule.db";
+
+    // Version history:
+    // 1: initial schema
+    // 2: add sync_state table
+    // 3: add sessions_search full-text index
+    // 4: replace single-column indices with covering ones
+    // 5: add tweets table
+    // 6: add delta feed watermark to sync_state
+    // 7: name the start time index after its key columns
+    private static final int VER_INITIAL = 1;
+    private static final int VER_SYNC_STATE = 2;
+    private static final int VER_SESSION_SEARCH = 3;
+    private static final int VER_COVERING_INDICES = 4;
+    private static final int VER_TWEETS = 5;
+    private static final int VER_SYNC_WATERMARK = 6;
+    private static final int VER_INDEX_NAMES = 7;
 
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = VER_INDEX_NAMES;
 
     /** Table names. */
     interface Tables {
         String SESSIONS = "sessions";
+        String SYNC_STATE = "sync_state";
+        String SESSIONS_SEARCH = "sessions_search";
+        String TWEETS = "tweets";
+
+        String SESSIONS_SEARCH_JOIN_SESSIONS = SESSIONS_SEARCH + " JOIN "
+                + SESSIONS + " ON " + SESSIONS_SEARCH + ".docid = " + SESSIONS
+                + "." + BaseColumns._ID;
+    }
+
+    /** Triggers names. */
+    interface Triggers {
+        String SESSIONS_SEARCH_INSERT = Tables.SESSIONS_SEARCH + "_insert";
+        String SESSIONS_SEARCH_REPLACE = Tables.SESSIONS_SEARCH + "_replace";
+        String SESSIONS_SEARCH_UPDATE = Tables.SESSIONS_SEARCH + "_update";
+        String SESSIONS_SEARCH_DELETE = Tables.SESSIONS_SEARCH + "_delete";
+    }
+
+    /** Columns of {@link Tables#SESSIONS_SEARCH}. */
+    interface SessionsSearchColumns {
+        String TITLE = "search_title";
+        String HOSTS = "search_hosts";
+        String ABSTRACT = "search_abstract";
     }
 
     /** Indices names. */
     interface Indices {
+        String SESSION_DAY_START = Tables.SESSIONS + "_"
+                + SessionColumns.SESSION_DAY + "_"
+                + SessionColumns.SESSION_START;
+        String SESSION_START_TITLE = Tables.SESSIONS + "_"
+                + SessionColumns.SESSION_START + "_"
+                + SessionColumns.SESSION_TITLE;
+
+        // Initial single-column indices (up to VER_SESSION_SEARCH)
         String SESSION_DAY = Tables.SESSIONS + "_" + SessionColumns.SESSION_DAY;
         String SESSION_START = Tables.SESSIONS + "_"
                 + SessionColumns.SESSION_START;
         String SESSION_END = Tables.SESSIONS + "_" + SessionColumns.SESSION_END;
+
+        // Former name of SESSION_START_TITLE (up to VER_SYNC_WATERMARK): the
+        // end time is only stored, not part of the key
+        String SESSION_START_END = Tables.SESSIONS + "_"
+                + SessionColumns.SESSION_START + "_"
+                + SessionColumns.SESSION_END;
     }
 
+    /**
+     * Columns read by the session list ({@link Sessions#LIST_PROJECTION}),
+     * appended to the indices so that its queries never have to touch the
+     * sessions table.
+     */
+    private static final String SESSION_LIST_COLUMNS =
+            SessionColumns.SESSION_END + "," + SessionColumns.SESSION_ID
+            + "," + SessionColumns.SESSION_HOSTS;
+
     /**
      * @see SQLiteOpenHelper#SQLiteOpenHelper(Context, String,
      *      SQLiteDatabase.CursorFactory, int)
@@ -65,8 +133,87 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * A single, non-destructive schema upgrade step.
+     * <p>
+     * Steps are never modified once released: any further schema change needs
+     * a new step, so that every database goes through exactly the same
+     * sequence no matter which version it starts from.
+     */
+    private interface Migration {
+        /** Upgrade the schema from its version to the next one. */
+        void upgrade(SQLiteDatabase db);
+    }
+
+    /**
+     * Ordered schema upgrade steps: {@code MIGRATIONS[i]} upgrades the schema
+     * from version {@code VER_INITIAL + i} to the next one.
+     */
+    private static final Migration[] MIGRATIONS = {
+        // VER_INITIAL -> VER_SYNC_STATE: HTTP cache validators for remote feeds
+        new Migration() {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                createSyncStateTable(db);
+            }
+        },
+        // VER_SYNC_STATE -> VER_SESSION_SEARCH: full-text search over sessions
+        new Migration() {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                createSessionsSearch(db);
+            }
+        },
+        // VER_SESSION_SEARCH -> VER_COVERING_INDICES: covering session indices
+        new Migration() {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                dropInitialIndices(db);
+                createCoveringIndices(db);
+            }
+        },
+        // VER_COVERING_INDICES -> VER_TWEETS: persistent Twitter stream
+        new Migration() {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                createTweetsTable(db);
+            }
+        },
+        // VER_TWEETS -> VER_SYNC_WATERMARK: server-issued delta feed watermark
+        new Migration() {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + Tables.SYNC_STATE
+                        + " ADD COLUMN " + SyncStateColumns.FEED_WATERMARK
+                        + " TEXT");
+            }
+        },
+        // VER_SYNC_WATERMARK -> VER_INDEX_NAMES: SQLite can't rename indices
+        new Migration() {
+            @Override
+            public void upgrade(SQLiteDatabase db) {
+                db.execSQL("DROP INDEX IF EXISTS " + Indices.SESSION_START_END);
+                createStartTimeIndex(db, Indices.SESSION_START_TITLE);
+            }
+        },
+    };
+
+    static {
+        if (VER_INITIAL + MIGRATIONS.length != DATABASE_VERSION) {
+            throw new AssertionError("Missing schema migration steps");
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        // Build the initial schema and bring it up to date through the same
+        // steps used for upgrades, so that new and upgraded databases can't
+        // drift apart
+        createInitialSchema(db);
+        migrate(db, VER_INITIAL, DATABASE_VERSION);
+    }
+
+    private static void createInitialSchema(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE "
                 + Tables.SESSIONS
                 + " ("
@@ -83,10 +230,6 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + SessionColumns.SESSION_ABSTRACT + " TEXT," + "UNIQUE ("
                 + SessionColumns.SESSION_ID + ") ON CONFLICT REPLACE)");
 
-        createIndices(db);
-    }
-
-    private void createIndices(SQLiteDatabase db) {
         // Index by day
         db.execSQL("CREATE INDEX IF NOT EXISTS " + Indices.SESSION_DAY
                 + " ON " + Tables.SESSIONS + " ("
@@ -100,6 +243,115 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + Tables.SESSIONS + " (" + SessionColumns.SESSION_END + ")");
     }
 
+    private static void createSyncStateTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE "
+                + Tables.SYNC_STATE
+                + " ("
+                + BaseColumns._ID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + SyncStateColumns.FEED_URL + " TEXT NOT NULL,"
+                + SyncStateColumns.FEED_ETAG + " TEXT,"
+                + SyncStateColumns.FEED_LAST_MODIFIED + " INTEGER,"
+                + "UNIQUE (" + SyncStateColumns.FEED_URL
+                + ") ON CONFLICT REPLACE)");
+    }
+
+    private static void createTweetsTable(SQLiteDatabase db) {
+        // Tweet ids are used as RowIDs: they're unique and grow over time, so
+        // the newest tweet is always the one with the greatest RowID
+        db.execSQL("CREATE TABLE "
+                + Tables.TWEETS
+                + " ("
+                + Tweet.Contract.ID
+                + " INTEGER PRIMARY KEY ON CONFLICT REPLACE,"
+                + Tweet.Contract.CREATED_AT + " INTEGER NOT NULL,"
+                + Tweet.Contract.FROM_USER + " TEXT NOT NULL,"
+                + Tweet.Contract.FROM_USER_ID + " INTEGER NOT NULL,"
+                + Tweet.Contract.FROM_USER_NAME + " TEXT,"
+                + Tweet.Contract.LOCATION + " TEXT,"
+                + Tweet.Contract.LATITUDE + " REAL,"
+                + Tweet.Contract.LONGITUDE + " REAL,"
+                + Tweet.Contract.PROFILE_IMAGE_URL + " TEXT,"
+                + Tweet.Contract.CONTENTS + " TEXT)");
+    }
+
+    private static void createSessionsSearch(SQLiteDatabase db) {
+        // FTS4 is only available on Honeycomb and later, stick with FTS3.
+        // Title must be the first column, search ranking depends on it.
+        db.execSQL("CREATE VIRTUAL TABLE " + Tables.SESSIONS_SEARCH
+                + " USING fts3(" + SessionsSearchColumns.TITLE + ","
+                + SessionsSearchColumns.HOSTS + ","
+                + SessionsSearchColumns.ABSTRACT + ")");
+
+        // Keep the full-text index in sync with the sessions table. The
+        // document id of each entry is the RowID of its session.
+        final String insertNew = "INSERT INTO " + Tables.SESSIONS_SEARCH
+                + " (docid," + SessionsSearchColumns.TITLE + ","
+                + SessionsSearchColumns.HOSTS + ","
+                + SessionsSearchColumns.ABSTRACT + ") VALUES (new."
+                + BaseColumns._ID + ",new." + SessionColumns.SESSION_TITLE
+                + ",new." + SessionColumns.SESSION_HOSTS + ",new."
+                + SessionColumns.SESSION_ABSTRACT + ");";
+        final String deleteOld = "DELETE FROM " + Tables.SESSIONS_SEARCH
+                + " WHERE docid = old." + BaseColumns._ID + ";";
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_SEARCH_INSERT
+                + " AFTER INSERT ON " + Tables.SESSIONS + " BEGIN "
+                + insertNew + " END");
+        // ON CONFLICT REPLACE doesn't fire delete triggers unless recursive
+        // triggers are enabled, drop the entry of the replaced row by hand
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_SEARCH_REPLACE
+                + " BEFORE INSERT ON " + Tables.SESSIONS + " BEGIN DELETE FROM "
+                + Tables.SESSIONS_SEARCH + " WHERE docid IN (SELECT "
+                + BaseColumns._ID + " FROM " + Tables.SESSIONS + " WHERE "
+                + SessionColumns.SESSION_ID + " = new."
+                + SessionColumns.SESSION_ID + "); END");
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_SEARCH_UPDATE
+                + " AFTER UPDATE ON " + Tables.SESSIONS + " BEGIN "
+                + deleteOld + insertNew + " END");
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_SEARCH_DELETE
+                + " AFTER DELETE ON " + Tables.SESSIONS + " BEGIN "
+                + deleteOld + " END");
+
+        // Index whatever is already there
+        db.execSQL("INSERT INTO " + Tables.SESSIONS_SEARCH + " (docid,"
+                + SessionsSearchColumns.TITLE + ","
+                + SessionsSearchColumns.HOSTS + ","
+                + SessionsSearchColumns.ABSTRACT + ") SELECT "
+                + BaseColumns._ID + "," + SessionColumns.SESSION_TITLE + ","
+                + SessionColumns.SESSION_HOSTS + ","
+                + SessionColumns.SESSION_ABSTRACT + " FROM " + Tables.SESSIONS);
+    }
+
+    private static void createCoveringIndices(SQLiteDatabase db) {
+        // Sessions on a given day, in Sessions.DEFAULT_SORT order
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Indices.SESSION_DAY_START
+                + " ON " + Tables.SESSIONS + " (" + SessionColumns.SESSION_DAY
+                + "," + SessionColumns.SESSION_START + ","
+                + SessionColumns.SESSION_TITLE + " COLLATE NOCASE,"
+                + SESSION_LIST_COLUMNS + ")");
+        createStartTimeIndex(db, Indices.SESSION_START_END);
+    }
+
+    /**
+     * Index sessions running at a given time: range scan on the start time,
+     * with the end time checked straight from the index. Entries are already
+     * in Sessions.DEFAULT_SORT order, which is why the end time can't be part
+     * of the key.
+     */
+    private static void createStartTimeIndex(SQLiteDatabase db, String name) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + name + " ON "
+                + Tables.SESSIONS + " (" + SessionColumns.SESSION_START + ","
+                + SessionColumns.SESSION_TITLE + " COLLATE NOCASE,"
+                + SESSION_LIST_COLUMNS + ")");
+    }
+
+    private static void dropInitialIndices(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + Indices.SESSION_DAY);
+        db.execSQL("DROP INDEX IF EXISTS " + Indices.SESSION_START);
+        db.execSQL("DROP INDEX IF EXISTS " + Indices.SESSION_END);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (BuildConfig.DEBUG) {
@@ -107,31 +359,78 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                     + newVersion);
         }
 
-        // This switch will eventually be used to perform incremental updates to
-        // the database schema.
-        int version = oldVersion;
-
-        switch (version) {
-        default:
-            break;
-        }
+        final int version = migrate(db, oldVersion, DATABASE_VERSION);
 
         // Check if the incremental update brought us to the current version,
         // otherwise destroy the database and start fresh
         if (version != DATABASE_VERSION) {
+            if (BuildConfig.DEBUG) {
+                // Don't let a missing migration path wipe data unnoticed
+                throw new IllegalStateException(
+                        "No schema migration path from version " + oldVersion
+                                + " to " + DATABASE_VERSION);
+            }
             Log.w(LOG_TAG,
                     "Unable to perform incremental schema update, dropping old database");
 
             db.execSQL("DROP TABLE IF EXISTS " + Tables.SESSIONS);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.SYNC_STATE);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.SESSIONS_SEARCH);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.TWEETS);
 
             onCreate(db);
         }
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && !db.isReadOnly()) {
+            enableWriteAheadLogging(db);
+        }
+    }
+
+    /**
+     * Switch the database to write-ahead logging, so that queries run on
+     * their own pooled connections instead of waiting for a sync transaction
+     * to commit.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (!db.enableWriteAheadLogging()) {
+            Log.w(LOG_TAG, "Unable to enable write-ahead logging");
+        }
+    }
+
+    /**
+     * Run the schema upgrade steps between the given versions.
+     * 
+     * @return the schema version reached, which is not {@code toVersion} if
+     *         {@code fromVersion} is unknown
+     */
+    static int migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        int version = fromVersion;
+        while (version >= VER_INITIAL && version < toVersion) {
+            if (BuildConfig.DEBUG) {
+                Log.d(LOG_TAG, "Upgrading schema from version " + version);
+            }
+            MIGRATIONS[version - VER_INITIAL].upgrade(db);
+            version++;
+        }
+        return version;
+    }
+
     /**
      * Purge the entire database from disk.
      */
     public static void deleteDatabase(Context context) {
         context.deleteDatabase(DATABASE_NAME);
+        // Context.deleteDatabase() leaves the log files behind before
+        // Jelly Bean, and a stale WAL would be replayed into the new database
+        final String path = context.getDatabasePath(DATABASE_NAME).getPath();
+        new File(path + "-wal").delete();
+        new File(path + "-shm").delete();
+        new File(path + "-journal").delete();
     }
 }
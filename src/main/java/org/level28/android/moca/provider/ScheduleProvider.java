@@ -23,22 +23,30 @@ package org.level28.android.moca.provider;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 
 import org.level28.android.moca.provider.ScheduleContract.Sessions;
+import org.level28.android.moca.provider.ScheduleContract.SyncState;
+import org.level28.android.moca.provider.ScheduleContract.Tweets;
 import org.level28.android.moca.provider.ScheduleDatabase.Tables;
 import org.level28.android.moca.util.SelectionBuilder;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 
 /**
  * Content provider for MOCA schedule.
@@ -53,12 +61,36 @@ public class ScheduleProvider extends ContentProvider {
 
     private ScheduleDatabase mOpenHelper;
 
+    /** State of the batch being applied by the current thread (if any) */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
     private static final UriMatcher sUriMatcher = buildUriMatcher();
 
+    /** Search hit excerpt, with matching words in bold */
+    private static final String SEARCH_SNIPPET = "snippet("
+            + Tables.SESSIONS_SEARCH + ",'<b>','</b>','...')";
+
+    /**
+     * Default search ranking.
+     * <p>
+     * FTS3 has no built-in ranking function: {@code offsets()} lists hits
+     * column by column, so hits on the title (first column) show up first, and
+     * its length grows with the number of hits.
+     */
+    static final String SEARCH_SORT = "substr(offsets("
+            + Tables.SESSIONS_SEARCH + "),1,2) = '0 ' DESC,length(offsets("
+            + Tables.SESSIONS_SEARCH + ")) DESC," + Tables.SESSIONS + "."
+            + Sessions.SESSION_START + " ASC";
+
     private static final int SESSIONS = 100;
     private static final int SESSIONS_AT = 101;
     private static final int SESSIONS_DAY = 102;
     private static final int SESSIONS_ID = 103;
+    private static final int SESSIONS_SEARCH = 104;
+
+    private static final int SYNC_STATE = 200;
+
+    private static final int TWEETS = 300;
 
     /** Build all URIs supported by this content provider. */
     private static UriMatcher buildUriMatcher() {
@@ -68,8 +100,13 @@ public class ScheduleProvider extends ContentProvider {
         matcher.addURI(authority, "sessions", SESSIONS);
         matcher.addURI(authority, "sessions/at/*", SESSIONS_AT);
         matcher.addURI(authority, "sessions/day/*", SESSIONS_DAY);
+        matcher.addURI(authority, "sessions/search/*", SESSIONS_SEARCH);
         matcher.addURI(authority, "sessions/*", SESSIONS_ID);
 
+        matcher.addURI(authority, "sync_state", SYNC_STATE);
+
+        matcher.addURI(authority, "tweets", TWEETS);
+
         return matcher;
     }
 
@@ -93,9 +130,14 @@ public class ScheduleProvider extends ContentProvider {
         case SESSIONS:
         case SESSIONS_AT:
         case SESSIONS_DAY:
+        case SESSIONS_SEARCH:
             return Sessions.CONTENT_TYPE;
         case SESSIONS_ID:
             return Sessions.CONTENT_ITEM_TYPE;
+        case SYNC_STATE:
+            return SyncState.CONTENT_TYPE;
+        case TWEETS:
+            return Tweets.CONTENT_TYPE;
         default:
             throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -107,22 +149,107 @@ public class ScheduleProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
         final int match = sUriMatcher.match(uri);
+        if (match == SESSIONS_SEARCH) {
+            return querySearch(db, uri, projection, selection, selectionArgs,
+                    sortOrder);
+        }
         final SelectionBuilder builder = buildSelection(uri, match);
         return builder.where(selection, selectionArgs).query(db, projection,
                 sortOrder);
     }
 
+    /**
+     * Run a full-text search over sessions.
+     * <p>
+     * Unless a sort order is specified, sessions matching on their title come
+     * first, followed by those with more hits; ties are broken by start time.
+     */
+    private Cursor querySearch(SQLiteDatabase db, Uri uri,
+            String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        final SelectionBuilder builder = buildSearchSelection(uri);
+        if (builder == null) {
+            // Nothing to look for, return an empty result set
+            return new MatrixCursor(projection != null ? projection
+                    : new String[] { Sessions._ID });
+        }
+
+        return builder.where(selection, selectionArgs).query(db, projection,
+                TextUtils.isEmpty(sortOrder) ? SEARCH_SORT : sortOrder);
+    }
+
+    /**
+     * Build the selection specification used to search sessions.
+     * 
+     * @return the selection, or {@code null} if the search URI has nothing to
+     *         look for
+     */
+    static SelectionBuilder buildSearchSelection(Uri uri) {
+        final String match = buildMatchExpression(Sessions
+                .getSearchQuery(uri));
+        if (match.length() == 0) {
+            return null;
+        }
+
+        return new SelectionBuilder()
+                .table(Tables.SESSIONS_SEARCH_JOIN_SESSIONS)
+                .mapToTable(Sessions._ID, Tables.SESSIONS)
+                .map(Sessions.SEARCH_SNIPPET, SEARCH_SNIPPET)
+                .where(Tables.SESSIONS_SEARCH + " MATCH ?", match);
+    }
+
+    /**
+     * Turn free text typed by the user into an FTS3 query matching every word
+     * as a prefix.
+     * <p>
+     * Everything but letters and digits is treated as a separator, so users
+     * can't (accidentally) inject FTS3 operators.
+     */
+    private static String buildMatchExpression(String query) {
+        final StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        return match.toString();
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
 
         switch (match) {
-        case SESSIONS:
-            db.insertOrThrow(Tables.SESSIONS, null, values);
-            getContext().getContentResolver().notifyChange(uri, null);
+        case SESSIONS: {
+            final Batch batch = mBatch.get();
+            if (batch != null && values.size() > 0) {
+                batch.statements.insert(Tables.SESSIONS, values);
+            } else {
+                db.insertOrThrow(Tables.SESSIONS, null, values);
+            }
+            notifyChange(uri);
             return Sessions.buildSessionUri(values
                     .getAsString(Sessions.SESSION_ID));
+        }
+        case SYNC_STATE:
+            db.insertOrThrow(Tables.SYNC_STATE, null, values);
+            notifyChange(uri);
+            return uri;
+        case TWEETS: {
+            final Batch batch = mBatch.get();
+            if (batch != null && values.size() > 0) {
+                batch.statements.insert(Tables.TWEETS, values);
+            } else {
+                db.insertOrThrow(Tables.TWEETS, null, values);
+            }
+            notifyChange(uri);
+            return uri;
+        }
         default:
             throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -133,10 +260,18 @@ public class ScheduleProvider extends ContentProvider {
             String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
-        final SelectionBuilder builder = buildSelection(uri, match);
-        int updated = builder.where(selection, selectionArgs)
-                .update(db, values);
-        getContext().getContentResolver().notifyChange(uri, null);
+        final SelectionBuilder builder = buildSelection(uri, match)
+                .where(selection, selectionArgs);
+        final Batch batch = mBatch.get();
+        int updated;
+        if (batch != null && isSessionsMatch(match) && values.size() > 0
+                && StatementCache.canUpdateOrDelete()) {
+            updated = batch.statements.update(Tables.SESSIONS, values,
+                    builder.getSelection(), builder.getSelectionArgs());
+        } else {
+            updated = builder.update(db, values);
+        }
+        notifyChange(uri);
         return updated;
     }
 
@@ -150,9 +285,18 @@ public class ScheduleProvider extends ContentProvider {
         }
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
-        final SelectionBuilder builder = buildSelection(uri, match);
-        int deleted = builder.where(selection, selectionArgs).delete(db);
-        getContext().getContentResolver().notifyChange(uri, null);
+        final SelectionBuilder builder = buildSelection(uri, match)
+                .where(selection, selectionArgs);
+        final Batch batch = mBatch.get();
+        int deleted;
+        if (batch != null && isSessionsMatch(match)
+                && StatementCache.canUpdateOrDelete()) {
+            deleted = batch.statements.delete(Tables.SESSIONS,
+                    builder.getSelection(), builder.getSelectionArgs());
+        } else {
+            deleted = builder.delete(db);
+        }
+        notifyChange(uri);
         return deleted;
     }
 
@@ -160,30 +304,147 @@ public class ScheduleProvider extends ContentProvider {
      * Apply the given set of {@link ContentProviderOperation}, executing inside
      * a {@link SQLiteDatabase} transaction. All changes will be rolled back if
      * any single one fails.
+     * <p>
+     * Writes to the sessions table reuse compiled statements for the whole
+     * batch and change notifications are sent only once the transaction has
+     * been committed.
      */
     @Override
     public ContentProviderResult[] applyBatch(
             ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.beginTransaction();
+        final Batch batch = beginBatch(db);
+        final ContentProviderResult[] results;
         try {
             final int numOperations = operations.size();
-            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            results = new ContentProviderResult[numOperations];
             for (int i = 0; i < numOperations; i++) {
                 results[i] = operations.get(i).apply(this, results, i);
             }
             db.setTransactionSuccessful();
-            return results;
         } finally {
-            db.endTransaction();
+            endBatch(db, batch);
         }
+        batch.notifyChanges(getContext().getContentResolver());
+        return results;
+    }
+
+    /**
+     * Insert the given set of rows inside a single {@link SQLiteDatabase}
+     * transaction, using the same fast path as
+     * {@link #applyBatch(ArrayList)}.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Batch batch = beginBatch(db);
+        try {
+            for (ContentValues row : values) {
+                insert(uri, row);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            endBatch(db, batch);
+        }
+        batch.notifyChanges(getContext().getContentResolver());
+        return values.length;
+    }
+
+    private Batch beginBatch(final SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            beginTransactionNonExclusive(db);
+        } else {
+            db.beginTransaction();
+        }
+        final Batch batch = new Batch(db);
+        mBatch.set(batch);
+        return batch;
+    }
+
+    /**
+     * Start an {@code IMMEDIATE} transaction: in write-ahead logging mode,
+     * queries from other threads keep running on their own connections.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void beginTransactionNonExclusive(final SQLiteDatabase db) {
+        db.beginTransactionNonExclusive();
+    }
+
+    private void endBatch(final SQLiteDatabase db, final Batch batch) {
+        mBatch.remove();
+        batch.statements.close();
+        db.endTransaction();
+    }
+
+    /**
+     * Notify registered observers of a change, or defer the notification
+     * until the end of the current batch (if any).
+     */
+    private void notifyChange(final Uri uri) {
+        final Batch batch = mBatch.get();
+        if (batch == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        } else if (isSessionsMatch(sUriMatcher.match(uri))) {
+            batch.sessionsChanged = true;
+        } else {
+            batch.changedUris.add(uri);
+        }
+    }
+
+    /**
+     * Check if the given URI match refers to the sessions table.
+     */
+    private static boolean isSessionsMatch(final int match) {
+        switch (match) {
+        case SESSIONS:
+        case SESSIONS_AT:
+        case SESSIONS_DAY:
+        case SESSIONS_ID:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Per-thread state of a batch being applied.
+     */
+    private static final class Batch {
+        /** Compiled statements reused across the batch */
+        final StatementCache statements;
+        /** Distinct non-session URIs to notify once the batch commits */
+        final LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
+        /** Whether the sessions table has been written to */
+        boolean sessionsChanged;
+
+        Batch(final SQLiteDatabase db) {
+            statements = new StatementCache(db);
+        }
+
+        void notifyChanges(final ContentResolver resolver) {
+            for (Uri uri : changedUris) {
+                resolver.notifyChange(uri, null);
+            }
+            if (sessionsChanged) {
+                // A single notification for the whole table: every session
+                // observer (all day lists included) reloads once per batch
+                resolver.notifyChange(Sessions.CONTENT_URI, null);
+            }
+        }
+    }
+
+    /**
+     * Build the selection specification used to query the given URI.
+     */
+    static SelectionBuilder buildSelection(Uri uri) {
+        return buildSelection(uri, sUriMatcher.match(uri));
     }
 
     /**
      * Build a selection specification for the given URI match.
      */
-    private SelectionBuilder buildSelection(Uri uri, int match) {
+    private static SelectionBuilder buildSelection(Uri uri, int match) {
         final SelectionBuilder builder = new SelectionBuilder();
 
         switch (match) {
@@ -205,6 +466,10 @@ public class ScheduleProvider extends ContentProvider {
             return builder.table(Tables.SESSIONS).where(
                     Sessions.SESSION_ID + " = ?", id);
         }
+        case SYNC_STATE:
+            return builder.table(Tables.SYNC_STATE);
+        case TWEETS:
+            return builder.table(Tables.TWEETS);
         default:
             throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -0,0 +1,217 @@
+// @formatter:off
+/*
+ * StatementCache.java - cache of compiled SQLite statements for batch writes
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.provider;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.text.TextUtils;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Cache of compiled {@link SQLiteStatement}s for write operations.
+ * <p>
+ * Statements are keyed by their SQL text, so that a batch of similar writes
+ * (e.g. a schedule synchronization) compiles each statement only once instead
+ * of once per row. Instances should live no longer than the transaction they
+ * are used in. This class is <em>not</em> thread safe.
+ * 
+ * @author Matteo Panella
+ */
+final class StatementCache {
+
+    private final SQLiteDatabase mDb;
+
+    private final HashMap<String, SQLiteStatement> mStatements = Maps
+            .newHashMap();
+
+    StatementCache(final SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Check if compiled {@code UPDATE} and {@code DELETE} statements are
+     * supported on this device.
+     * <p>
+     * {@link SQLiteStatement#executeUpdateDelete()} is API Level 11+, older
+     * devices must go through {@link SQLiteDatabase} instead.
+     */
+    static boolean canUpdateOrDelete() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Insert a row into the given table.
+     * 
+     * @return the row ID of the newly inserted row
+     * @throws android.database.SQLException
+     *             if the insertion fails
+     */
+    long insert(final String table, final ContentValues values) {
+        final String[] columns = sortedColumns(values);
+
+        final StringBuilder sql = new StringBuilder(128);
+        sql.append("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        sql.append(')');
+
+        final SQLiteStatement statement = getStatement(sql.toString());
+        bindValues(statement, columns, values);
+        return statement.executeInsert();
+    }
+
+    /**
+     * Update all rows of the given table matching the selection.
+     * 
+     * @return the number of updated rows
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    int update(final String table, final ContentValues values,
+            final String selection, final String[] selectionArgs) {
+        final String[] columns = sortedColumns(values);
+
+        final StringBuilder sql = new StringBuilder(128);
+        sql.append("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(columns[i]).append("=?");
+        }
+        appendWhere(sql, selection);
+
+        final SQLiteStatement statement = getStatement(sql.toString());
+        bindValues(statement, columns, values);
+        bindArgs(statement, columns.length + 1, selectionArgs);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Delete all rows of the given table matching the selection.
+     * 
+     * @return the number of deleted rows
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    int delete(final String table, final String selection,
+            final String[] selectionArgs) {
+        final StringBuilder sql = new StringBuilder(64);
+        sql.append("DELETE FROM ").append(table);
+        appendWhere(sql, selection);
+
+        final SQLiteStatement statement = getStatement(sql.toString());
+        statement.clearBindings();
+        bindArgs(statement, 1, selectionArgs);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Release all compiled statements.
+     */
+    void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+
+    private SQLiteStatement getStatement(final String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = mDb.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Get the column names of {@code values} in a stable order, so that the
+     * same set of columns always maps to the same statement.
+     */
+    private static String[] sortedColumns(final ContentValues values) {
+        // ContentValues.keySet() is API Level 11+
+        final Set<Map.Entry<String, Object>> entries = values.valueSet();
+        final String[] columns = new String[entries.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : entries) {
+            columns[i++] = entry.getKey();
+        }
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    private static void appendWhere(final StringBuilder sql,
+            final String selection) {
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ").append(selection);
+        }
+    }
+
+    private static void bindValues(final SQLiteStatement statement,
+            final String[] columns, final ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            bindValue(statement, i + 1, values.get(columns[i]));
+        }
+    }
+
+    private static void bindArgs(final SQLiteStatement statement,
+            final int firstIndex, final String[] args) {
+        if (args == null) {
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null) {
+                statement.bindNull(firstIndex + i);
+            } else {
+                statement.bindString(firstIndex + i, args[i]);
+            }
+        }
+    }
+
+    private static void bindValue(final SQLiteStatement statement,
+            final int index, final Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+}
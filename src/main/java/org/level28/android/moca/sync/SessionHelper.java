@@ -21,8 +21,14 @@
 
 package org.level28.android.moca.sync;
 
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+
 import java.io.IOException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -30,29 +36,55 @@ import org.level28.android.moca.json.JsonDeserializerException;
 import org.level28.android.moca.json.ScheduleDeserializer;
 import org.level28.android.moca.model.Session;
 import org.level28.android.moca.provider.ScheduleContract.Sessions;
+import org.level28.android.moca.provider.ScheduleContract.SyncState;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.database.Cursor;
+import android.text.TextUtils;
 
 import com.github.kevinsawicki.http.HttpRequest;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.MapDifference;
-import com.google.common.collect.MapDifference.ValueDifference;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * Synchronization helper for sessions.
+ * <p>
+ * Servers supporting the TMA-1 delta feed send an opaque watermark in the
+ * {@value #WATERMARK_HEADER} header along with the schedule. Once a watermark
+ * has been stored, only the changes since then are requested
+ * ({@code schedule.json?since=<watermark>}), and the reply is trusted to be a
+ * delta only if it carries a new watermark. Everything else (including static
+ * files which ignore the query string) is handled with a conditional request
+ * and a full snapshot comparison.
  * 
  * @author Matteo Panella
  */
 class SessionHelper {
+    /** Query string used to ask for a delta feed */
+    private static final String DELTA_QUERY = "?since=";
+
+    /** Response header carrying the server-issued delta feed watermark */
+    static final String WATERMARK_HEADER = "X-Delta-Watermark";
+
     private final String mUrl;
     private final String mUserAgent;
     private final ContentResolver mContentResolver;
     private final long now;
 
+    /** Entity tag returned by the last successful download (if any) */
+    private String mETag;
+    /** Last-Modified time returned by the last successful download (if any) */
+    private long mLastModified;
+    /** Delta feed watermark returned by the last successful download (if any) */
+    private String mWatermark;
+
+    /** Sync state stored by the previous synchronization */
+    private String mStoredETag;
+    private long mStoredLastModified;
+    private String mStoredWatermark;
+
     SessionHelper(final String url, final String userAgent,
             final ContentResolver contentResolver) {
         mUrl = url;
@@ -67,140 +99,252 @@ class SessionHelper {
      */
     List<ContentProviderOperation> synchronizeSessions() throws IOException,
             JsonDeserializerException {
-        final ArrayList<ContentProviderOperation> sessionsBatch = Lists
-                .newArrayList();
+        loadSyncState();
 
-        // Get a snapshot of all sessions stored in the database
-        final Map<String, Session> localSessions = getSessionsSnapshot();
-        // Ask the TMA-1 server for updated session data
-        final Map<String, Session> remoteSessions = getRemoteSessions();
+        // If the server gave us a watermark last time, try the delta feed
+        if (!TextUtils.isEmpty(mStoredWatermark)) {
+            final List<ContentProviderOperation> deltaBatch = getRemoteDelta(
+                    mStoredWatermark);
+            if (deltaBatch != null) {
+                return deltaBatch;
+            }
+            // The server didn't reply with a delta, fall back to a full
+            // synchronization
+        }
 
-        if (!remoteSessions.isEmpty()) {
+        // Ask the TMA-1 server for updated session data, diffing each session
+        // against the local database as soon as it has been parsed
+        final SessionDiff diff = new SessionDiff();
+        if (!getRemoteSessions(diff)) {
+            // The server told us nothing has changed since our last download,
+            // don't even bother looking at the local database
+            return Lists.newArrayList();
+        }
+
+        final ArrayList<ContentProviderOperation> sessionsBatch = diff.mBatch;
+        if (diff.mRemoteCount > 0) {
             // Perform the update only if we got a non-empty reply from the
-            // TMA-1 server
-            final MapDifference<String, Session> diff = Maps.difference(
-                    localSessions, remoteSessions);
-
-            // @formatter:off
-            /*
-             * Now diff contains a nice "patch" that should be transformed into a
-             * batch of ContentProviderOperation.
-             *
-             * Namely:
-             *  diff.entriesDiffering()   -> entries that should be updated with new values
-             *  diff.entriesOnlyOnLeft()  -> entries that should be removed
-             *  diff.entriesOnlyOnRight() -> entries that should be added
-             */
-            // @formatter:on
-            sessionsBatch.addAll(createUpdateOps(diff.entriesDiffering()));
-            sessionsBatch.addAll(createDeleteOps(diff.entriesOnlyOnLeft()));
-            sessionsBatch.addAll(createInsertOps(diff.entriesOnlyOnRight()));
+            // TMA-1 server: whatever the server didn't mention is stale
+            for (String sessionId : diff.mStaleIds) {
+                sessionsBatch.add(createDeleteOp(sessionId));
+            }
+
+            // Remember the cache validators for this feed inside the same
+            // batch, so that they're committed only if the update succeeds
+            sessionsBatch.add(createSyncStateOp());
         }
 
         return sessionsBatch;
     }
 
     /**
-     * Create a batch of UPDATE requests for sessions with updated values.
+     * Streaming diff between the remote schedule and the local database.
+     * <p>
+     * Each remote session is turned into an INSERT or UPDATE request (if
+     * needed) as soon as it has been parsed, so that the remote schedule is
+     * never kept in memory as a whole. Local sessions which have not been
+     * mentioned by the server once the whole schedule has been parsed are
+     * left in {@link #mStaleIds}.
      */
-    private List<ContentProviderOperation> createUpdateOps(
-            Map<String, ValueDifference<Session>> entriesDiffering) {
-        final ArrayList<ContentProviderOperation> updateBatch = Lists
+    private final class SessionDiff implements
+            ScheduleDeserializer.SessionCallback {
+        final ArrayList<ContentProviderOperation> mBatch = Lists
                 .newArrayList();
 
-        for (String sessionId : entriesDiffering.keySet()) {
-            final ValueDifference<Session> delta = entriesDiffering
-                    .get(sessionId);
-            final Session newSession = delta.rightValue();
-
-            updateBatch.add(ContentProviderOperation
-                    .newUpdate(Sessions.CONTENT_URI)
-                    .withSelection(Sessions.SESSION_ID + "=?",
-                            new String[] { sessionId })
-                    .withValue(Sessions.UPDATED, now)
-                    .withValue(Sessions.SESSION_TITLE, newSession.getTitle())
-                    .withValue(Sessions.SESSION_DAY, newSession.getDay())
-                    .withValue(Sessions.SESSION_START,
-                            newSession.getStartTime())
-                    .withValue(Sessions.SESSION_END, newSession.getEndTime())
-                    .withValue(Sessions.SESSION_HOSTS, newSession.getHosts())
-                    .withValue(Sessions.SESSION_LANG,
-                            newSession.getLang().toString())
-                    .withValue(Sessions.SESSION_ABSTRACT,
-                            newSession.getSessionAbstract()).build());
+        /** Local sessions, loaded along with the first remote session */
+        Map<String, Session> mLocalSessions;
+
+        /** Ids of local sessions not mentioned by the server (yet) */
+        HashSet<String> mStaleIds;
+
+        /** Number of remote sessions parsed so far */
+        int mRemoteCount;
+
+        @Override
+        public void onSessionParsed(final Session session) {
+            if (mLocalSessions == null) {
+                // Get a snapshot of all sessions stored in the database
+                mLocalSessions = getSessionsSnapshot();
+                mStaleIds = Sets.newHashSet(mLocalSessions.keySet());
+            }
+            mRemoteCount++;
+
+            final String sessionId = session.getId();
+            final Session localSession = mLocalSessions.get(sessionId);
+            if (localSession == null) {
+                mBatch.add(createInsertOp(session));
+            } else if (!localSession.equals(session)) {
+                mBatch.add(createUpdateOp(session));
+            }
+            mStaleIds.remove(sessionId);
         }
+    }
 
-        return updateBatch;
+    /**
+     * Create an UPDATE request for a session with updated values.
+     */
+    private ContentProviderOperation createUpdateOp(final Session newSession) {
+        return ContentProviderOperation
+                .newUpdate(Sessions.CONTENT_URI)
+                .withSelection(Sessions.SESSION_ID + "=?",
+                        new String[] { newSession.getId() })
+                .withValue(Sessions.UPDATED, now)
+                .withValue(Sessions.SESSION_TITLE, newSession.getTitle())
+                .withValue(Sessions.SESSION_DAY, newSession.getDay())
+                .withValue(Sessions.SESSION_START, newSession.getStartTime())
+                .withValue(Sessions.SESSION_END, newSession.getEndTime())
+                .withValue(Sessions.SESSION_HOSTS, newSession.getHosts())
+                .withValue(Sessions.SESSION_LANG,
+                        newSession.getLang().toString())
+                .withValue(Sessions.SESSION_ABSTRACT,
+                        newSession.getSessionAbstract()).build();
     }
 
     /**
-     * Create a batch of DELETE requests for stale sessions.
+     * Create a DELETE request for a single session.
      */
-    private List<ContentProviderOperation> createDeleteOps(
-            Map<String, Session> staleSessions) {
-        final ArrayList<ContentProviderOperation> deleteBatch = Lists
-                .newArrayList();
+    private ContentProviderOperation createDeleteOp(final String sessionId) {
+        return ContentProviderOperation.newDelete(Sessions.CONTENT_URI)
+                .withSelection(Sessions.SESSION_ID + "=?",
+                        new String[] { sessionId }).build();
+    }
 
-        for (String sessionId : staleSessions.keySet()) {
-            deleteBatch.add(ContentProviderOperation
-                    .newDelete(Sessions.CONTENT_URI)
-                    .withSelection(Sessions.SESSION_ID + "=?",
-                            new String[] { sessionId }).build());
-        }
+    /**
+     * Create an INSERT request for a single session.
+     * <p>
+     * Since the {@code sessions} table replaces rows on conflict, this request
+     * can be used to upsert sessions as well.
+     */
+    private ContentProviderOperation createInsertOp(final Session session) {
+        return ContentProviderOperation.newInsert(Sessions.CONTENT_URI)
+                .withValue(Sessions.SESSION_ID, session.getId())
+                .withValue(Sessions.UPDATED, now)
+                .withValue(Sessions.SESSION_TITLE, session.getTitle())
+                .withValue(Sessions.SESSION_DAY, session.getDay())
+                .withValue(Sessions.SESSION_START, session.getStartTime())
+                .withValue(Sessions.SESSION_END, session.getEndTime())
+                .withValue(Sessions.SESSION_HOSTS, session.getHosts())
+                .withValue(Sessions.SESSION_LANG, session.getLang().toString())
+                .withValue(Sessions.SESSION_ABSTRACT,
+                        session.getSessionAbstract()).build();
+    }
 
-        return deleteBatch;
+    /**
+     * Create an INSERT request storing the cache validators for this feed.
+     * <p>
+     * The {@code sync_state} table replaces rows on conflict, so this is an
+     * upsert in practice.
+     */
+    private ContentProviderOperation createSyncStateOp() {
+        return ContentProviderOperation.newInsert(SyncState.CONTENT_URI)
+                .withValue(SyncState.FEED_URL, mUrl)
+                .withValue(SyncState.FEED_ETAG, mETag)
+                .withValue(SyncState.FEED_LAST_MODIFIED, mLastModified)
+                .withValue(SyncState.FEED_WATERMARK, mWatermark).build();
     }
 
     /**
-     * Create a batch of INSERT requests for new sessions.
+     * Fetch all changes since the given watermark off the delta feed and turn
+     * them straight into a batch of requests.
+     * 
+     * @param since
+     *            the watermark returned by the server with the last download
+     * @return a batch of upserts and deletions, or {@code null} if the server
+     *         did not reply with a delta
      */
-    private List<ContentProviderOperation> createInsertOps(
-            Map<String, Session> newSessions) {
-        final ArrayList<ContentProviderOperation> insertBatch = Lists
+    private List<ContentProviderOperation> getRemoteDelta(final String since)
+            throws IOException, JsonDeserializerException {
+        final ArrayList<ContentProviderOperation> deltaBatch = Lists
                 .newArrayList();
 
-        for (Session session : newSessions.values()) {
-            insertBatch.add(ContentProviderOperation
-                    .newInsert(Sessions.CONTENT_URI)
-                    .withValue(Sessions.SESSION_ID, session.getId())
-                    .withValue(Sessions.UPDATED, now)
-                    .withValue(Sessions.SESSION_TITLE, session.getTitle())
-                    .withValue(Sessions.SESSION_DAY, session.getDay())
-                    .withValue(Sessions.SESSION_START, session.getStartTime())
-                    .withValue(Sessions.SESSION_END, session.getEndTime())
-                    .withValue(Sessions.SESSION_HOSTS, session.getHosts())
-                    .withValue(Sessions.SESSION_LANG,
-                            session.getLang().toString())
-                    .withValue(Sessions.SESSION_ABSTRACT,
-                            session.getSessionAbstract()).build());
+        ScheduleDeserializer jsonDeserializer = new ScheduleDeserializer();
+        HttpRequest request = HttpRequest
+                .get(mUrl + DELTA_QUERY + URLEncoder.encode(since, "UTF-8"))
+                .userAgent(mUserAgent).acceptJson().acceptGzipEncoding()
+                .uncompress(true);
+
+        final int code = request.code();
+        if (request.ok()) {
+            final String watermark = request.header(WATERMARK_HEADER);
+            if (TextUtils.isEmpty(watermark)) {
+                // Not a delta: the server ignored the query string and most
+                // likely sent the whole schedule
+                request.disconnect();
+                return null;
+            }
+            jsonDeserializer.deltaFromInputStream(request.stream(),
+                    new ScheduleDeserializer.DeltaCallback() {
+                        @Override
+                        public void onSessionParsed(Session session) {
+                            deltaBatch.add(createInsertOp(session));
+                        }
+
+                        @Override
+                        public void onSessionDeleted(String sessionId) {
+                            deltaBatch.add(createDeleteOp(sessionId));
+                        }
+                    });
+
+            // The cache validators of the full schedule are stale by now
+            mWatermark = watermark;
+            deltaBatch.add(createSyncStateOp());
+        } else if (code == HTTP_BAD_REQUEST || code == HTTP_NOT_FOUND
+                || code == HTTP_NOT_IMPLEMENTED) {
+            // No delta feed on this server
+            return null;
+        } else if (!request.notModified()) {
+            // Anything else that's not a 200 or a 304 should cause the
+            // synchronization code to fail fast
+            throw new IOException("Request failed: " + code + " - "
+                    + request.message());
         }
 
-        return insertBatch;
+        return deltaBatch;
     }
 
     /**
      * Fetch current list of sessions off the network.
+     * <p>
+     * Cache validators from the last successful download are sent along with
+     * the request.
+     * 
+     * @param callback
+     *            the callback which will receive each remote session as soon
+     *            as it has been parsed
+     * @return {@code false} if the server replied with
+     *         {@code 304 Not Modified}, {@code true} otherwise
      */
-    private ImmutableMap<String, Session> getRemoteSessions()
+    private boolean getRemoteSessions(
+            final ScheduleDeserializer.SessionCallback callback)
             throws IOException, JsonDeserializerException {
-        final ImmutableMap.Builder<String, Session> mapBuilder = ImmutableMap
-                .builder();
-
         ScheduleDeserializer jsonDeserializer = new ScheduleDeserializer();
         HttpRequest request = HttpRequest.get(mUrl).userAgent(mUserAgent)
                 .acceptJson().acceptGzipEncoding().uncompress(true);
 
+        // Turn this into a conditional request if we have any validator
+        if (!TextUtils.isEmpty(mStoredETag)) {
+            request.ifNoneMatch(mStoredETag);
+        }
+        if (mStoredLastModified > 0) {
+            request.ifModifiedSince(mStoredLastModified);
+        }
+
         if (request.ok()) {
-            mapBuilder
-                    .putAll(jsonDeserializer.fromInputStream(request.stream()));
-        } else if (!request.notModified()) {
+            mETag = request.eTag();
+            mLastModified = request.lastModified();
+            // Servers without a delta feed don't send any watermark, which
+            // keeps us from trying it next time
+            mWatermark = request.header(WATERMARK_HEADER);
+            jsonDeserializer.fromInputStream(request.stream(), callback);
+            return true;
+        } else if (request.notModified()) {
+            return false;
+        } else {
             // Anything that's not a 200 or a 304 should cause the
             // synchronization code to fail fast
             throw new IOException("Request failed: " + request.code() + " - "
                     + request.message());
         }
-
-        return mapBuilder.build();
     }
 
     /**
@@ -243,6 +387,41 @@ class SessionHelper {
         return mapBuilder.build();
     }
 
+    /**
+     * Load the sync state stored for this feed by the previous
+     * synchronization (if any).
+     */
+    private void loadSyncState() {
+        final Cursor cursor = mContentResolver.query(SyncState.CONTENT_URI,
+                SyncStateQuery.PROJECTION, SyncState.FEED_URL_SELECTION,
+                new String[] { mUrl }, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                mStoredETag = cursor.getString(SyncStateQuery.ETAG);
+                mStoredLastModified = cursor
+                        .getLong(SyncStateQuery.LAST_MODIFIED);
+                mStoredWatermark = cursor.getString(SyncStateQuery.WATERMARK);
+            }
+            cursor.close();
+        }
+    }
+
+    /**
+     * Query parameters for feed cache validators.
+     */
+    private interface SyncStateQuery {
+        /**
+         * Attribute projection.
+         */
+        String[] PROJECTION = { SyncState.FEED_ETAG,
+                SyncState.FEED_LAST_MODIFIED, SyncState.FEED_WATERMARK, };
+
+        // Cursor column offsets
+        int ETAG = 0;
+        int LAST_MODIFIED = 1;
+        int WATERMARK = 2;
+    }
+
     /**
      * Query parameters for local sessions.
      */
@@ -134,6 +134,66 @@ public abstract class ItemListAdapter<I, V extends ItemView> extends
      */
     protected abstract void update(int position, V view, I item);
 
+    /**
+     * Warm up caches for an item which is about to be displayed.
+     * <p>
+     * Does nothing by default.
+     * 
+     * @param position
+     *            current offset in the array backing this adapter
+     * @param item
+     *            the item which is about to be displayed
+     */
+    protected void prefetch(int position, I item) {
+    }
+
+    /**
+     * Warm up caches for the item at the given position, if any.
+     * 
+     * @param position
+     *            current offset in the array backing this adapter
+     */
+    public void prefetch(int position) {
+        if (position >= 0 && position < elements.length) {
+            prefetch(position, getItem(position));
+        }
+    }
+
+    /**
+     * Cancel all prefetching in progress.
+     * <p>
+     * Does nothing by default.
+     */
+    public void cancelPrefetch() {
+    }
+
+    /**
+     * Release whatever background work has been started for an item view
+     * which is about to be discarded.
+     * 
+     * @param view
+     *            an item view returned by
+     *            {@link #getView(int, View, ViewGroup)}
+     */
+    @SuppressWarnings("unchecked")
+    public void release(View view) {
+        final Object holder = view.getTag();
+        if (holder != null) {
+            release((V) holder);
+        }
+    }
+
+    /**
+     * Release whatever background work has been started for a view holder.
+     * <p>
+     * Does nothing by default.
+     * 
+     * @param view
+     *            the view holder of a discarded item view
+     */
+    protected void release(V view) {
+    }
+
     /**
      * Create a new view holder for a given item view.
      * 
@@ -28,11 +28,14 @@ import org.level28.android.moca.util.ViewUtils;
 import android.app.Activity;
 import android.app.Application;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.Loader;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListAdapter;
@@ -59,6 +62,12 @@ public abstract class ItemListFragment<E> extends SherlockFragment implements
 
     private static final String FORCE_REFRESH = "forceRefresh";
 
+    /** How many rows ahead of the scroll direction should be prefetched */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    /** Scrolling speed (in rows per second) above which prefetching pauses */
+    private static final int PREFETCH_MAX_VELOCITY = 20;
+
     /**
      * Check if the bundle requested a forced refresh of the items
      * 
@@ -120,6 +129,15 @@ public abstract class ItemListFragment<E> extends SherlockFragment implements
 
     @Override
     public void onDestroyView() {
+        // Stop all work done for the views which are going away
+        final ItemListAdapter<E, ? extends ItemView> adapter = getListAdapter();
+        if (adapter != null) {
+            for (int i = 0; i < listView.getChildCount(); i++) {
+                adapter.release(listView.getChildAt(i));
+            }
+            adapter.cancelPrefetch();
+        }
+
         // Clear all references
         listShown = false;
         emptyView = null;
@@ -146,9 +164,87 @@ public abstract class ItemListFragment<E> extends SherlockFragment implements
 
         emptyView = (TextView) view.findViewById(android.R.id.empty);
 
+        listView.setOnScrollListener(new PrefetchScrollListener());
+
         configureList(getActivity(), getListView());
     }
 
+    /**
+     * Scroll listener prefetching the rows which are about to be displayed.
+     * <p>
+     * Prefetching follows the scroll direction, and pauses while the list is
+     * flung or scrolled too fast for prefetched rows to be seen at all.
+     */
+    private class PrefetchScrollListener implements OnScrollListener {
+        private int scrollState = SCROLL_STATE_IDLE;
+
+        /** 1 when scrolling down, -1 when scrolling up */
+        private int direction = 1;
+
+        private int lastFirstVisible = -1;
+        private long lastScrollTime;
+
+        private boolean tooFast;
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            this.scrollState = scrollState;
+            final ItemListAdapter<E, ? extends ItemView> adapter = getListAdapter();
+            if (adapter == null) {
+                return;
+            }
+
+            if (scrollState == SCROLL_STATE_FLING) {
+                // Whatever we prefetched is going to fly by anyway
+                adapter.cancelPrefetch();
+            } else if (scrollState == SCROLL_STATE_IDLE) {
+                // Scrolling has settled, resume prefetching
+                tooFast = false;
+                prefetch(adapter, view.getFirstVisiblePosition(),
+                        view.getChildCount());
+            }
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem,
+                int visibleItemCount, int totalItemCount) {
+            if (firstVisibleItem == lastFirstVisible) {
+                return;
+            }
+
+            final long now = SystemClock.uptimeMillis();
+            if (lastFirstVisible >= 0) {
+                final int rows = firstVisibleItem - lastFirstVisible;
+                direction = rows > 0 ? 1 : -1;
+                final long elapsed = Math.max(now - lastScrollTime, 1);
+                tooFast = Math.abs(rows) * 1000 / elapsed > PREFETCH_MAX_VELOCITY;
+            }
+            lastFirstVisible = firstVisibleItem;
+            lastScrollTime = now;
+
+            final ItemListAdapter<E, ? extends ItemView> adapter = getListAdapter();
+            if (adapter != null && scrollState != SCROLL_STATE_FLING
+                    && !tooFast) {
+                prefetch(adapter, firstVisibleItem, visibleItemCount);
+            }
+        }
+
+        private void prefetch(ItemListAdapter<E, ? extends ItemView> adapter,
+                int firstVisibleItem, int visibleItemCount) {
+            if (direction > 0) {
+                final int start = firstVisibleItem + visibleItemCount;
+                for (int i = start; i < start + PREFETCH_DISTANCE; i++) {
+                    adapter.prefetch(i);
+                }
+            } else {
+                for (int i = firstVisibleItem - 1; i >= firstVisibleItem
+                        - PREFETCH_DISTANCE; i--) {
+                    adapter.prefetch(i);
+                }
+            }
+        }
+    }
+
     /**
      * Configure list after view has been created.
      * 
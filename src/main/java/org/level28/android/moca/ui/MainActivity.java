@@ -21,13 +21,18 @@
 
 package org.level28.android.moca.ui;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import org.level28.android.moca.BuildConfig;
+import org.level28.android.moca.MocaApp;
 import org.level28.android.moca.R;
 import org.level28.android.moca.bitmaps.NetworkAvatarLoader;
 import org.level28.android.moca.bitmaps.SimpleBitmapLoader;
 import org.level28.android.moca.sync.MocaAuthenticator;
 import org.level28.android.moca.ui.map.MocaMap;
 import org.level28.android.moca.ui.schedule.ScheduleActivity;
+import org.level28.android.moca.util.InstrumentedExecutor;
 
 import android.accounts.AccountManager;
 import android.annotation.TargetApi;
@@ -207,9 +212,26 @@ public class MainActivity extends SherlockFragmentActivity implements
     @Override
     protected void onDestroy() {
         mAvatarLoader.release(true);
+        mBannerLoader.release();
         super.onDestroy();
     }
 
+    /**
+     * Add background executor and bitmap cache metrics to
+     * {@code adb shell dumpsys activity top}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Executors:");
+        InstrumentedExecutor.dumpAll(prefix + "  ", writer);
+        writer.print(prefix);
+        writer.print("Bitmap cache: ");
+        writer.println(MocaApp.getApplication(this).getBitmapCache());
+    }
+
     public NetworkAvatarLoader avatarLoader() {
         return mAvatarLoader;
     }
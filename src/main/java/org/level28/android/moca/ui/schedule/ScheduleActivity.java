@@ -37,14 +37,18 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.NavUtils;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.SpinnerAdapter;
 
 import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
+import com.actionbarsherlock.view.MenuItem.OnActionExpandListener;
 
 /**
  * Display MOCA schedule for talks and main events.
@@ -79,6 +83,8 @@ public class ScheduleActivity extends SherlockFragmentActivity implements
 
     private SpinnerAdapter mSpinnerAdapter;
 
+    private MenuItem mSearchItem;
+
     private boolean mDualPane = false;
 
     @Override
@@ -158,12 +164,14 @@ public class ScheduleActivity extends SherlockFragmentActivity implements
     @Override
     protected void onDestroy() {
         mSpinnerAdapter = null;
+        mSearchItem = null;
         super.onDestroy();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
-        getSupportMenuInflater().inflate(R.menu.refresh_menu, menu);
+        getSupportMenuInflater().inflate(R.menu.schedule_menu, menu);
+        setupSearch(menu.findItem(R.id.menu_search));
         return true;
     }
 
@@ -238,6 +246,53 @@ public class ScheduleActivity extends SherlockFragmentActivity implements
         }
     }
 
+    /**
+     * Setup search-as-you-type over all sessions.
+     * <p>
+     * Every keystroke reloads the session list with the matching sessions,
+     * collapsing the search field brings back the current day.
+     */
+    private void setupSearch(final MenuItem searchItem) {
+        mSearchItem = searchItem;
+        final EditText searchField = (EditText) searchItem.getActionView()
+                .findViewById(R.id.searchField);
+        searchField.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start,
+                    int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before,
+                    int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                final String query = s.toString().trim();
+                if (query.length() == 0) {
+                    mSessionListFragment.loadScheduleForDay(mCurrentDay);
+                } else {
+                    mSessionListFragment.searchSessions(query);
+                }
+            }
+        });
+        searchItem.setOnActionExpandListener(new OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                searchField.requestFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                // Clearing the field reloads the current day
+                searchField.setText(null);
+                return true;
+            }
+        });
+    }
+
     /**
      * Setup the action bar for list navigation mode.
      */
@@ -267,6 +322,11 @@ public class ScheduleActivity extends SherlockFragmentActivity implements
     private void setScheduleDay(final int day) {
         mCurrentDay = day;
 
+        // Picking a day ends the current search
+        if (mSearchItem != null && mSearchItem.isActionViewExpanded()) {
+            mSearchItem.collapseActionView();
+        }
+
         // Update the schedule fragment
         mSessionListFragment.loadScheduleForDay(mCurrentDay);
 
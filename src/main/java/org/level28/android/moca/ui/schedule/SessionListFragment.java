@@ -32,7 +32,7 @@ import org.level28.android.moca.provider.ScheduleContract.Sessions;
 import org.level28.android.moca.util.ViewUtils;
 import org.level28.android.moca.widget.ScheduleItemLayout;
 
-import android.app.Activity;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
@@ -41,11 +41,11 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.provider.BaseColumns;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.CursorAdapter;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -104,6 +104,9 @@ public class SessionListFragment extends SherlockFragment implements
     private boolean mDualPane = false;
     private boolean mDataValid = false;
 
+    /** URI currently watched by {@link #mObserver} */
+    private Uri mObservedUri;
+
     /**
      * Content observer for sessions.
      * <p>
@@ -151,6 +154,9 @@ public class SessionListFragment extends SherlockFragment implements
         mAdapter = new SessionsAdapter(getActivity());
         // setListAdapter(mAdapter);
 
+        // Only listen for changes to the sessions we're actually showing
+        observe(sessionsUri != null ? sessionsUri : Sessions.CONTENT_URI);
+
         // Fire background loading of sessions
         if (sessionsUri != null) {
             getLoaderManager().restartLoader(SessionsQuery._TOKEN, arguments,
@@ -174,20 +180,35 @@ public class SessionListFragment extends SherlockFragment implements
                 R.bool.isHoneycomb);
     }
 
-    @Override
-    public void onAttach(Activity activity) {
-        super.onAttach(activity);
-        // This is where the observer magic happens: register our little voyeur
-        // with the activity's content resolver
-        activity.getContentResolver().registerContentObserver(
-                Sessions.CONTENT_URI, true, mObserver);
+    /**
+     * Point {@link #mObserver} to the given URI.
+     * <p>
+     * This is where the observer magic happens: register our little voyeur
+     * with the activity's content resolver. Changes to the whole sessions
+     * table are still delivered, since the provider notifies parent URIs to
+     * all of their descendants.
+     */
+    private void observe(final Uri uri) {
+        if (uri.equals(mObservedUri)) {
+            return;
+        }
+        final ContentResolver resolver = getActivity().getContentResolver();
+        if (mObservedUri != null) {
+            resolver.unregisterContentObserver(mObserver);
+        }
+        resolver.registerContentObserver(uri, true, mObserver);
+        mObservedUri = uri;
     }
 
     @Override
     public void onDetach() {
         super.onDetach();
         // Release the observer when we're detaching from the host activity
-        getActivity().getContentResolver().unregisterContentObserver(mObserver);
+        if (mObservedUri != null) {
+            getActivity().getContentResolver().unregisterContentObserver(
+                    mObserver);
+            mObservedUri = null;
+        }
     }
 
     @Override
@@ -272,8 +293,11 @@ public class SessionListFragment extends SherlockFragment implements
         final Uri sessionsUri = intent.getData();
         Loader<Cursor> loader = null;
         if (id == SessionsQuery._TOKEN) {
+            // Search results come back ranked by relevance
+            final String sortOrder = Sessions.isSearchUri(sessionsUri) ? null
+                    : Sessions.DEFAULT_SORT;
             loader = new CursorLoader(getActivity(), sessionsUri,
-                    SessionsQuery.PROJECTION, null, null, Sessions.DEFAULT_SORT);
+                    SessionsQuery.PROJECTION, null, null, sortOrder);
         }
         return loader;
     }
@@ -401,6 +425,27 @@ public class SessionListFragment extends SherlockFragment implements
         reloadFromArguments(loaderArgs);
     }
 
+    /**
+     * Load all sessions matching the given search query.
+     * <p>
+     * Every word in {@code query} is matched as a prefix, so this can be
+     * called on every keystroke.
+     */
+    void searchSessions(final String query) {
+        checkArgument(!TextUtils.isEmpty(query), "Empty search query");
+
+        if (!isUsable()) {
+            return;
+        }
+
+        // Build new arguments for our loader
+        final Bundle loaderArgs = intentToFragmentArguments(new Intent(
+                Intent.ACTION_SEARCH, Sessions.buildSearchUri(query)));
+
+        // Restart the loader
+        reloadFromArguments(loaderArgs);
+    }
+
     // Almost all of the following methods are direct copies of the ones in
     // ItemListFragment. Check that class for documentation.
 
@@ -535,9 +580,7 @@ public class SessionListFragment extends SherlockFragment implements
         /**
          * Projection used by the ContentProvider.
          */
-        String[] PROJECTION = { BaseColumns._ID, Sessions.SESSION_ID,
-                Sessions.SESSION_TITLE, Sessions.SESSION_START,
-                Sessions.SESSION_END, Sessions.SESSION_HOSTS, };
+        String[] PROJECTION = Sessions.LIST_PROJECTION;
 
         // Column offsets
         // _ID has to be part of the projection, otherwise CursorAdapter will
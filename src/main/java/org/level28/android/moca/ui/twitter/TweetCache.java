@@ -0,0 +1,219 @@
+// @formatter:off
+/*
+ * TweetCache.java - persistent cache for the MOCA Twitter stream
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.ui.twitter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.level28.android.moca.model.Tweet;
+import org.level28.android.moca.provider.ScheduleContract;
+import org.level28.android.moca.provider.ScheduleContract.Tweets;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Persistent cache for the MOCA Twitter stream.
+ * <p>
+ * Tweets are kept in the {@link Tweets} table, newest first, so that the
+ * stream can be shown as soon as the app starts and each refresh only has to
+ * download tweets newer than {@link #getNewestId(List)}.
+ * 
+ * @author Matteo Panella
+ */
+final class TweetCache {
+
+    /** Maximum number of cached tweets */
+    static final int MAX_TWEETS = 100;
+
+    private final ContentResolver mContentResolver;
+
+    TweetCache(final ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Load all cached tweets, newest first.
+     */
+    List<Tweet> load() {
+        final Cursor cursor = mContentResolver.query(Tweets.CONTENT_URI,
+                TweetsQuery.PROJECTION, null, null, Tweets.DEFAULT_SORT);
+        if (cursor == null) {
+            return Collections.emptyList();
+        }
+        try {
+            final ArrayList<Tweet> tweets = Lists.newArrayListWithCapacity(cursor
+                    .getCount());
+            while (cursor.moveToNext()) {
+                tweets.add(fromCursor(cursor));
+            }
+            return tweets;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get the id of the newest tweet in a list returned by {@link #load()}.
+     * 
+     * @return the newest tweet id, or {@code 0} if the list is empty
+     */
+    static long getNewestId(final List<Tweet> cached) {
+        return cached.isEmpty() ? 0 : cached.get(0).getId();
+    }
+
+    /**
+     * Merge newly downloaded tweets into the cache.
+     * <p>
+     * Only the {@link #MAX_TWEETS} newest tweets are kept. When {@code newer}
+     * may not connect to the cached tweets (i.e. some tweets in between were
+     * never downloaded), the cached tweets are discarded instead of showing a
+     * stream with a hole in it.
+     * 
+     * @param cached
+     *            tweets returned by {@link #load()}
+     * @param newer
+     *            tweets downloaded since {@link #getNewestId(List)}
+     * @param discardCached
+     *            {@code true} if {@code newer} may not connect to
+     *            {@code cached}
+     * @return the updated contents of the cache, newest first
+     * @throws RemoteException
+     *             if the content provider could not be reached
+     * @throws OperationApplicationException
+     *             if the cache could not be updated
+     */
+    List<Tweet> merge(final List<Tweet> cached, final List<Tweet> newer,
+            final boolean discardCached) throws RemoteException,
+            OperationApplicationException {
+        // Newest first, without duplicates
+        final TreeMap<Long, Tweet> byId = Maps.newTreeMap(Collections
+                .<Long> reverseOrder());
+        if (!discardCached) {
+            for (Tweet tweet : cached) {
+                byId.put(tweet.getId(), tweet);
+            }
+        }
+        for (Tweet tweet : newer) {
+            byId.put(tweet.getId(), tweet);
+        }
+
+        final ArrayList<Tweet> merged = Lists.newArrayList(byId.values());
+        if (merged.size() > MAX_TWEETS) {
+            merged.subList(MAX_TWEETS, merged.size()).clear();
+        }
+        if (newer.isEmpty()) {
+            // Nothing new, the cache is up to date
+            return merged;
+        }
+
+        final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
+        if (discardCached) {
+            batch.add(ContentProviderOperation.newDelete(Tweets.CONTENT_URI)
+                    .build());
+        }
+        for (Tweet tweet : newer) {
+            batch.add(ContentProviderOperation.newInsert(Tweets.CONTENT_URI)
+                    .withValues(toValues(tweet)).build());
+        }
+        if (!merged.isEmpty()) {
+            final long oldestId = merged.get(merged.size() - 1).getId();
+            batch.add(ContentProviderOperation
+                    .newDelete(Tweets.CONTENT_URI)
+                    .withSelection(Tweets.OLDER_THAN_SELECTION,
+                            new String[] { String.valueOf(oldestId) }).build());
+        }
+        mContentResolver.applyBatch(ScheduleContract.CONTENT_AUTHORITY, batch);
+        return merged;
+    }
+
+    private static ContentValues toValues(final Tweet tweet) {
+        final ContentValues values = new ContentValues();
+        values.put(Tweet.Contract.ID, tweet.getId());
+        values.put(Tweet.Contract.CREATED_AT, tweet.getCreatedAt().getTime());
+        values.put(Tweet.Contract.FROM_USER, tweet.getFromUser());
+        values.put(Tweet.Contract.FROM_USER_ID, tweet.getFromUserId());
+        values.put(Tweet.Contract.FROM_USER_NAME, tweet.getFromUserName());
+        values.put(Tweet.Contract.LOCATION, tweet.getLocation());
+        final Tweet.Coordinates coordinates = tweet.getCoordinates();
+        if (coordinates != null) {
+            values.put(Tweet.Contract.LATITUDE, coordinates.lat);
+            values.put(Tweet.Contract.LONGITUDE, coordinates.lon);
+        } else {
+            values.putNull(Tweet.Contract.LATITUDE);
+            values.putNull(Tweet.Contract.LONGITUDE);
+        }
+        values.put(Tweet.Contract.PROFILE_IMAGE_URL, tweet.getProfileImageUrl());
+        values.put(Tweet.Contract.CONTENTS, tweet.getText());
+        return values;
+    }
+
+    private static Tweet fromCursor(final Cursor cursor) {
+        final Tweet tweet = new Tweet();
+        tweet.setId(cursor.getLong(TweetsQuery.ID));
+        tweet.setCreatedAt(new Date(cursor.getLong(TweetsQuery.CREATED_AT)));
+        tweet.setFromUser(cursor.getString(TweetsQuery.FROM_USER));
+        tweet.setFromUserId(cursor.getLong(TweetsQuery.FROM_USER_ID));
+        tweet.setFromUserName(cursor.getString(TweetsQuery.FROM_USER_NAME));
+        tweet.setLocation(cursor.getString(TweetsQuery.LOCATION));
+        if (!cursor.isNull(TweetsQuery.LATITUDE)
+                && !cursor.isNull(TweetsQuery.LONGITUDE)) {
+            tweet.setCoordinates(new Tweet.Coordinates(cursor
+                    .getFloat(TweetsQuery.LATITUDE), cursor
+                    .getFloat(TweetsQuery.LONGITUDE)));
+        }
+        tweet.setProfileImageUrl(cursor
+                .getString(TweetsQuery.PROFILE_IMAGE_URL));
+        tweet.setText(cursor.getString(TweetsQuery.CONTENTS));
+        return tweet;
+    }
+
+    private interface TweetsQuery {
+        String[] PROJECTION = { Tweet.Contract.ID, Tweet.Contract.CREATED_AT,
+                Tweet.Contract.FROM_USER, Tweet.Contract.FROM_USER_ID,
+                Tweet.Contract.FROM_USER_NAME, Tweet.Contract.LOCATION,
+                Tweet.Contract.LATITUDE, Tweet.Contract.LONGITUDE,
+                Tweet.Contract.PROFILE_IMAGE_URL, Tweet.Contract.CONTENTS };
+
+        int ID = 0;
+        int CREATED_AT = 1;
+        int FROM_USER = 2;
+        int FROM_USER_ID = 3;
+        int FROM_USER_NAME = 4;
+        int LOCATION = 5;
+        int LATITUDE = 6;
+        int LONGITUDE = 7;
+        int PROFILE_IMAGE_URL = 8;
+        int CONTENTS = 9;
+    }
+}
@@ -0,0 +1,194 @@
+// @formatter:off
+/*
+ * TweetLoader.java - loader for the MOCA Twitter stream
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.ui.twitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.level28.android.moca.BuildConfig;
+import org.level28.android.moca.ExceptionLoader;
+import org.level28.android.moca.json.TwitterSearchDeserializer;
+import org.level28.android.moca.model.Tweet;
+import org.level28.android.moca.service.SyncService;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.google.common.collect.Lists;
+
+/**
+ * Loader for the MOCA Twitter stream.
+ * <p>
+ * Cached tweets can be delivered first, right after a cold start, as the
+ * result of a quick load which only reads the {@link TweetCache}: once they
+ * have been delivered the loader reports a content change and goes on with
+ * the network refresh, whose result replaces them.
+ * <p>
+ * Refreshes only download tweets newer than the cached ones, paging back
+ * until they connect to the cache (or {@link TweetCache#MAX_TWEETS} tweets
+ * have been downloaded).
+ * 
+ * @author Matteo Panella
+ */
+final class TweetLoader extends ExceptionLoader<List<Tweet>> {
+
+    /** Tag used for logging */
+    private static final String LOG_TAG = "TweetLoader";
+
+    /** Tweets per page, the most the search API hands out at once */
+    private static final int RESULTS_PER_PAGE = 100;
+
+    /** Query string used to set the page size */
+    private static final String RESULTS_PER_PAGE_QUERY = "&rpp=";
+
+    /** Query string used to ask only for tweets newer than a given one */
+    private static final String SINCE_ID_QUERY = "&since_id=";
+
+    /** Query string used to ask only for tweets older than a given one */
+    private static final String MAX_ID_QUERY = "&max_id=";
+
+    private final String mSearchUrl;
+
+    private final TweetCache mCache;
+
+    /** Should the next load only read the cache? */
+    private boolean mShowCached;
+
+    /** Set by a load which has only read the cache */
+    private boolean mLoadedCached;
+
+    /**
+     * @param context
+     *            the {@link Context} for this loader
+     * @param searchUrl
+     *            Twitter search URL, without paging parameters
+     * @param showCached
+     *            {@code true} to deliver cached tweets before refreshing them
+     */
+    TweetLoader(Context context, String searchUrl, boolean showCached) {
+        super(context, Collections.<Tweet> emptyList());
+        mSearchUrl = searchUrl;
+        mCache = new TweetCache(context.getContentResolver());
+        mShowCached = showCached;
+    }
+
+    @Override
+    public List<Tweet> performLoad() throws Exception {
+        if (BuildConfig.DEBUG) {
+            Log.v(LOG_TAG, "loadInBackground+");
+        }
+
+        if ("".equals(mSearchUrl)) {
+            throw new IOException(
+                    "TWITTER_SEARCH_URL is empty, please nag the author at morpheus@level28.org");
+        }
+
+        List<Tweet> result = mCache.load();
+        mLoadedCached = false;
+        if (mShowCached && !result.isEmpty()) {
+            // Show these first, deliverResult() will start the refresh
+            mLoadedCached = true;
+            return result;
+        }
+
+        // Only download tweets we haven't seen yet
+        final long newestId = TweetCache.getNewestId(result);
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "Fetching tweets newer than " + newestId);
+        }
+        final ArrayList<Tweet> newer = Lists.newArrayList();
+        final boolean gap;
+        long maxId = 0;
+        while (true) {
+            final List<Tweet> page = fetchPage(newestId, maxId);
+            if (page == null) {
+                // Keep the cache as it is rather than leaving a hole in it,
+                // next refresh will try again
+                return result;
+            }
+            newer.addAll(page);
+            if (newestId == 0 || page.size() < RESULTS_PER_PAGE) {
+                // Nothing left between this page and the cached tweets
+                gap = false;
+                break;
+            }
+            if (newer.size() >= TweetCache.MAX_TWEETS) {
+                // Cached tweets are too old to be kept anyway
+                gap = true;
+                break;
+            }
+            maxId = page.get(page.size() - 1).getId() - 1;
+        }
+        result = mCache.merge(result, newer, gap);
+
+        if (BuildConfig.DEBUG) {
+            Log.v(LOG_TAG, "loadInBackground-");
+        }
+        return result;
+    }
+
+    /**
+     * Fetch a page of tweets.
+     * 
+     * @param sinceId
+     *            only fetch tweets newer than this one, or {@code 0}
+     * @param maxId
+     *            only fetch tweets not newer than this one, or {@code 0}
+     * @return the tweets, newest first, or {@code null} if the request failed
+     */
+    private List<Tweet> fetchPage(final long sinceId, final long maxId)
+            throws Exception {
+        final StringBuilder url = new StringBuilder(mSearchUrl).append(
+                RESULTS_PER_PAGE_QUERY).append(RESULTS_PER_PAGE);
+        if (sinceId > 0) {
+            url.append(SINCE_ID_QUERY).append(sinceId);
+        }
+        if (maxId > 0) {
+            url.append(MAX_ID_QUERY).append(maxId);
+        }
+
+        final HttpRequest request = HttpRequest.get(url.toString())
+                .userAgent(SyncService.buildUserAgent(getContext()))
+                .acceptGzipEncoding().uncompress(true);
+        if (!request.ok()) {
+            return null;
+        }
+        return new TwitterSearchDeserializer()
+                .fromInputStream(request.stream()).getResults();
+    }
+
+    @Override
+    public void deliverResult(List<Tweet> data) {
+        final boolean cached = mLoadedCached;
+        mLoadedCached = false;
+        super.deliverResult(data);
+        if (cached) {
+            // Now for the real thing
+            mShowCached = false;
+            onContentChanged();
+        }
+    }
+}
@@ -21,6 +21,7 @@
 
 package org.level28.android.moca.ui.twitter;
 
+import org.level28.android.moca.R;
 import org.level28.android.moca.bitmaps.NetworkAvatarLoader;
 import org.level28.android.moca.model.Tweet;
 import org.level28.android.moca.ui.ItemListAdapter;
@@ -38,6 +39,13 @@ public class TwitterAdapter extends ItemListAdapter<Tweet, TweetItemView> {
 
     private final NetworkAvatarLoader avatars;
 
+    /**
+     * Size of the last laid out avatar view (or the nominal one), used for
+     * prefetching
+     */
+    private int avatarWidth;
+    private int avatarHeight;
+
     public TwitterAdapter(int viewId, LayoutInflater inflater,
             NetworkAvatarLoader avatars) {
         this(viewId, inflater, null, avatars);
@@ -47,6 +55,9 @@ public class TwitterAdapter extends ItemListAdapter<Tweet, TweetItemView> {
             Tweet[] elements, NetworkAvatarLoader avatars) {
         super(viewId, inflater, elements);
         this.avatars = avatars;
+        // Until an avatar view is laid out, assume it has its nominal size
+        avatarWidth = avatarHeight = inflater.getContext().getResources()
+                .getDimensionPixelSize(R.dimen.twitter_avatar);
     }
 
     @Override
@@ -65,6 +76,31 @@ public class TwitterAdapter extends ItemListAdapter<Tweet, TweetItemView> {
         view.contents.setText(item.getText().replace("&lt;", "<")
                 .replace("&gt;", ">").replace("&amp;", "&"));
         avatars.load(view.avatar, item.getProfileImageUrl());
+
+        if (view.avatar.getWidth() > 0) {
+            avatarWidth = view.avatar.getWidth();
+            avatarHeight = view.avatar.getHeight();
+        }
+    }
+
+    @Override
+    protected void prefetch(int position, Tweet item) {
+        // Rows are recycled, so upcoming avatars will be displayed by views
+        // as large as the ones already on screen
+        if (avatarWidth > 0) {
+            avatars.prefetch(item.getProfileImageUrl(), avatarWidth,
+                    avatarHeight);
+        }
+    }
+
+    @Override
+    public void cancelPrefetch() {
+        avatars.cancelPrefetches();
+    }
+
+    @Override
+    protected void release(TweetItemView view) {
+        avatars.cancel(view.avatar);
     }
 
     @Override
@@ -24,17 +24,11 @@ package org.level28.android.moca.ui.twitter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.Collections;
 import java.util.List;
 
-import org.level28.android.moca.BuildConfig;
-import org.level28.android.moca.ExceptionLoader;
 import org.level28.android.moca.R;
 import org.level28.android.moca.json.JsonDeserializerException;
-import org.level28.android.moca.json.TwitterSearchDeserializer;
 import org.level28.android.moca.model.Tweet;
-import org.level28.android.moca.model.TwitterSearchReply;
-import org.level28.android.moca.service.SyncService;
 import org.level28.android.moca.ui.ItemListAdapter;
 import org.level28.android.moca.ui.ItemListFragment;
 import org.level28.android.moca.ui.ItemView;
@@ -50,7 +44,6 @@ import android.widget.ListView;
 
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
-import com.github.kevinsawicki.http.HttpRequest;
 import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
 
 /**
@@ -84,6 +77,12 @@ public class TwitterFragment extends ItemListFragment<Tweet> {
      */
     private static final String TWITTER_QUERY = "(MOCA2012 OR MOCA_2012) -\"expo moca\" -from:moca2012 -from:mocapress exclude:retweets";
 
+    /**
+     * Only ask for the most recent tweets: popular ones may be older than
+     * {@code since_id} and break incremental refreshes
+     */
+    private static final String RESULT_TYPE_QUERY = "&result_type=recent";
+
     /** Final Twitter search url */
     private String TWITTER_SEARCH_URL;
 
@@ -106,7 +105,8 @@ public class TwitterFragment extends ItemListFragment<Tweet> {
         }
 
         if (encodedQuery != null) {
-            TWITTER_SEARCH_URL = sb.append(encodedQuery).toString();
+            TWITTER_SEARCH_URL = sb.append(encodedQuery)
+                    .append(RESULT_TYPE_QUERY).toString();
         } else {
             TWITTER_SEARCH_URL = "";
         }
@@ -126,38 +126,10 @@ public class TwitterFragment extends ItemListFragment<Tweet> {
 
     @Override
     public Loader<List<Tweet>> onCreateLoader(int id, Bundle args) {
-        final List<Tweet> emptyList = Collections.emptyList();
-        return new ExceptionLoader<List<Tweet>>(getActivity(), emptyList) {
-            @Override
-            public List<Tweet> performLoad() throws Exception {
-                if (BuildConfig.DEBUG) {
-                    Log.v(LOG_TAG, "loadInBackground+");
-                }
-
-                List<Tweet> result = Collections.emptyList();
-
-                if ("".equals(TWITTER_SEARCH_URL)) {
-                    throw new IOException(
-                            "TWITTER_SEARCH_URL is empty, please nag the author at morpheus@level28.org");
-                }
-                TwitterSearchDeserializer jsonParser = new TwitterSearchDeserializer();
-
-                HttpRequest request = HttpRequest.get(TWITTER_SEARCH_URL)
-                        .userAgent(SyncService.buildUserAgent(getContext()))
-                        .acceptGzipEncoding().uncompress(true);
-
-                if (request.ok()) {
-                    TwitterSearchReply searchReply = jsonParser
-                            .fromInputStream(request.stream());
-                    result = searchReply.getResults();
-                }
-
-                if (BuildConfig.DEBUG) {
-                    Log.v(LOG_TAG, "loadInBackground-");
-                }
-                return result;
-            }
-        };
+        // Show cached tweets right away on cold start, while the network
+        // refresh is running
+        return new TweetLoader(getActivity(), TWITTER_SEARCH_URL,
+                items.isEmpty());
     }
 
     @Override
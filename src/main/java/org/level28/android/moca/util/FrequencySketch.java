@@ -0,0 +1,125 @@
+// @formatter:off
+/*
+ * FrequencySketch.java - approximate access frequency of cache keys
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.util;
+
+/**
+ * Count-min sketch estimating how often cache keys have been accessed
+ * recently, used by {@link LruCache} to decide if a new entry is worth
+ * evicting an old one (TinyLFU).
+ * <p>
+ * Counters are 4 bits wide and sixteen of them are packed in each
+ * {@code long}: each key maps to four counters in four table slots, and its
+ * frequency is the smallest of them. Once enough increments have been
+ * recorded all counters are halved, so that keys which used to be popular
+ * eventually make room for new ones.
+ * <p>
+ * This class is <em>not</em> thread safe.
+ * 
+ * @author Matteo Panella
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+            0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /** Clears the top bit of each counter after a right shift */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int tableMask;
+
+    /** Number of increments after which all counters are halved */
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries
+     *            maximum number of entries the cache is expected to hold
+     */
+    FrequencySketch(int expectedEntries) {
+        // Round up to a power of two, so that slots can be masked
+        final int size = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    /**
+     * Get the estimated number of recent accesses to {@code key}, up to 15.
+     */
+    int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            final int shift = (start + i) << 2;
+            final int count = (int) ((table[indexOf(hash, i)] >>> shift) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access to {@code key}.
+     */
+    void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        final int shift = counter << 2;
+        final long mask = 0xfL << shift;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+    /** Halve all counters */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+}
@@ -0,0 +1,269 @@
+// @formatter:off
+/*
+ * InstrumentedExecutor.java - bounded thread pool keeping track of its load
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Fixed-size thread pool with named threads, a bounded queue and some basic
+ * metrics: queue depth, active threads, how long jobs wait in the queue and
+ * how long they run.
+ * <p>
+ * When the queue is full new jobs are handed to the rejection policy, usually
+ * {@link #CANCEL_POLICY}. Dropped jobs which are {@link Future}s are
+ * cancelled, so that their owners can find out.
+ * 
+ * @author Matteo Panella
+ */
+public class InstrumentedExecutor extends ThreadPoolExecutor {
+
+    /**
+     * Drop new jobs when the queue is full, cancelling them if they are
+     * {@link Future}s. Unlike an abort policy this never throws on the
+     * submitting thread, which is usually the UI thread; unlike a caller-runs
+     * policy it never runs background work there either.
+     */
+    public static final RejectedExecutionHandler CANCEL_POLICY = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            countDropped(executor);
+            cancel(r);
+        }
+    };
+
+    /** All executors created so far, for {@link #dumpAll} */
+    private static final CopyOnWriteArrayList<InstrumentedExecutor> sExecutors = new CopyOnWriteArrayList<InstrumentedExecutor>();
+
+    private final String mName;
+    private final int mQueueCapacity;
+
+    private final AtomicLong mCompletedJobs = new AtomicLong();
+    private final AtomicLong mDroppedJobs = new AtomicLong();
+    private final AtomicLong mTotalWaitTime = new AtomicLong();
+    private final AtomicLong mTotalRunTime = new AtomicLong();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    /**
+     * Create a new executor with a FIFO queue.
+     * 
+     * @param name
+     *            name of the executor, used for its threads
+     * @param poolSize
+     *            number of threads in the pool
+     * @param queueCapacity
+     *            maximum number of queued jobs
+     * @param rejectionPolicy
+     *            what to do when the queue is full
+     */
+    public InstrumentedExecutor(String name, int poolSize, int queueCapacity,
+            RejectedExecutionHandler rejectionPolicy) {
+        this(name, poolSize, queueCapacity, new LinkedBlockingQueue<Runnable>(
+                queueCapacity), rejectionPolicy);
+    }
+
+    /**
+     * Create a new executor with a custom queue.
+     * <p>
+     * Subclasses using an unbounded queue must enforce {@code queueCapacity}
+     * themselves.
+     * 
+     * @see #InstrumentedExecutor(String, int, int, RejectedExecutionHandler)
+     */
+    protected InstrumentedExecutor(String name, int poolSize,
+            int queueCapacity, BlockingQueue<Runnable> queue,
+            RejectedExecutionHandler rejectionPolicy) {
+        super(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, queue,
+                new NamedThreadFactory(name), rejectionPolicy);
+        mName = name;
+        mQueueCapacity = queueCapacity;
+        sExecutors.add(this);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        // Jobs requeued by subclasses are already wrapped
+        super.execute(command instanceof TimedJob ? command : newJob(command));
+        final int depth = getQueue().size();
+        int max;
+        while ((max = mMaxQueueDepth.get()) < depth
+                && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            // Retry
+        }
+    }
+
+    /**
+     * Wrap a job before queueing it.
+     */
+    protected TimedJob newJob(Runnable command) {
+        return new TimedJob(command);
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof TimedJob) {
+            final TimedJob job = (TimedJob) r;
+            job.mStartTime = SystemClock.uptimeMillis();
+            mTotalWaitTime.addAndGet(job.mStartTime - job.mQueueTime);
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (r instanceof TimedJob) {
+            final TimedJob job = (TimedJob) r;
+            mTotalRunTime.addAndGet(SystemClock.uptimeMillis()
+                    - job.mStartTime);
+            mCompletedJobs.incrementAndGet();
+        }
+    }
+
+    /** Get the name of this executor. */
+    public String getName() {
+        return mName;
+    }
+
+    /** Get the maximum number of queued jobs. */
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /** Get the number of jobs currently waiting in the queue. */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /** Get the largest number of jobs ever waiting in the queue. */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /** Get the number of jobs rejected or dropped because of a full queue. */
+    public long getDroppedJobCount() {
+        return mDroppedJobs.get();
+    }
+
+    /** Get the average time jobs spent in the queue, in milliseconds. */
+    public long getAverageWaitTime() {
+        final long completed = mCompletedJobs.get();
+        return completed != 0 ? mTotalWaitTime.get() / completed : 0;
+    }
+
+    /** Get the average time jobs took to run, in milliseconds. */
+    public long getAverageRunTime() {
+        final long completed = mCompletedJobs.get();
+        return completed != 0 ? mTotalRunTime.get() / completed : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s[threads=%d,active=%d,queued=%d/%d,maxQueued=%d,completed=%d,dropped=%d,avgWait=%dms,avgRun=%dms]",
+                mName, getPoolSize(), getActiveCount(), getQueueDepth(),
+                mQueueCapacity, getMaxQueueDepth(), mCompletedJobs.get(),
+                getDroppedJobCount(), getAverageWaitTime(),
+                getAverageRunTime());
+    }
+
+    /**
+     * Print the metrics of every executor, e.g. from
+     * {@link android.app.Activity#dump Activity.dump()}.
+     */
+    public static void dumpAll(String prefix, PrintWriter writer) {
+        for (InstrumentedExecutor executor : sExecutors) {
+            writer.print(prefix);
+            writer.println(executor);
+        }
+    }
+
+    static void countDropped(ThreadPoolExecutor executor) {
+        if (executor instanceof InstrumentedExecutor) {
+            ((InstrumentedExecutor) executor).mDroppedJobs.incrementAndGet();
+        }
+    }
+
+    /**
+     * Cancel a dropped job, so that whoever is waiting for it finds out.
+     */
+    static void cancel(Runnable job) {
+        if (job instanceof TimedJob) {
+            job = ((TimedJob) job).mJob;
+        }
+        if (job instanceof Future) {
+            ((Future<?>) job).cancel(false);
+        }
+    }
+
+    /**
+     * Queue entry: a job along with its timing information.
+     */
+    protected static class TimedJob implements Runnable {
+        final Runnable mJob;
+        final long mQueueTime;
+
+        /** Only touched by the thread running the job */
+        long mStartTime;
+
+        protected TimedJob(Runnable job) {
+            mJob = job;
+            mQueueTime = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void run() {
+            mJob.run();
+        }
+    }
+
+    /**
+     * Thread factory naming threads after their executor.
+     */
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mName + " #" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -43,6 +43,10 @@ public class LruCache<K, V> {
     private int evictionCount;
     private int hitCount;
     private int missCount;
+    private int rejectionCount;
+
+    /** Frequency sketch for admission control, null if disabled */
+    private FrequencySketch sketch;
 
     /**
      * @param maxSize
@@ -57,6 +61,27 @@ public class LruCache<K, V> {
         this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
     }
 
+    /**
+     * Only admit new entries which have been accessed more often than the
+     * entry they would evict (TinyLFU).
+     * <p>
+     * Access frequencies are estimated from {@link #get} calls only, so that
+     * the {@link #put} following a miss doesn't count twice, and a burst of
+     * entries seen only once (e.g. a fast scroll through a long list) can't
+     * flush out entries which are used over and over. New entries win ties,
+     * hence they still replace entries which have been seen just as rarely.
+     * Rejected entries are released right away through {@link #entryRemoved}
+     * as if they had been evicted. Replacements of existing entries are
+     * always admitted.
+     * 
+     * @param expectedEntries
+     *            maximum number of entries the cache is expected to hold
+     */
+    protected final synchronized void enableFrequencyAdmission(
+            int expectedEntries) {
+        sketch = new FrequencySketch(expectedEntries);
+    }
+
     /**
      * Returns the value for {@code key} if it exists in the cache or can be
      * created by {@code #create}. If a value was returned, it is moved to the
@@ -68,6 +93,9 @@ public class LruCache<K, V> {
 
         V mapValue;
         synchronized (this) {
+            if (sketch != null) {
+                sketch.increment(key);
+            }
             mapValue = map.get(key);
             if (mapValue != null) {
                 hitCount++;
@@ -109,9 +137,23 @@ public class LruCache<K, V> {
         }
     }
 
+    /**
+     * Returns the value for {@code key} if it exists in the cache, moving it
+     * to the head of the queue. Unlike {@link #get}, missing values are not
+     * created, and the lookup doesn't count towards access statistics or
+     * admission frequencies: meant for speculative lookups, e.g. looking for
+     * a substitute of a missing value.
+     */
+    public final V peek(K key) {
+        checkNotNull(key, "key == null");
+        synchronized (this) {
+            return map.get(key);
+        }
+    }
+
     /**
      * Caches {@code value} for {@code key}. The value is moved to the head of
-     * the queue.
+     * the queue, unless the admission policy (if any) rejects it.
      * 
      * @return the previous value mapped by {@code key}.
      */
@@ -120,13 +162,27 @@ public class LruCache<K, V> {
         checkNotNull(value, "value == null");
 
         V previous;
+        boolean rejected = false;
         synchronized (this) {
             putCount++;
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
+            if (sketch != null) {
+                rejected = !admit(key, value);
             }
+            if (rejected) {
+                rejectionCount++;
+                previous = null;
+            } else {
+                size += safeSizeOf(key, value);
+                previous = map.put(key, value);
+                if (previous != null) {
+                    size -= safeSizeOf(key, previous);
+                }
+            }
+        }
+
+        if (rejected) {
+            entryRemoved(true, key, value, null);
+            return null;
         }
 
         if (previous != null) {
@@ -137,6 +193,20 @@ public class LruCache<K, V> {
         return previous;
     }
 
+    /**
+     * Check if a new entry may evict the least recently used one. Must be
+     * called with the lock held.
+     */
+    private boolean admit(K key, V value) {
+        if (map.isEmpty() || map.containsKey(key)
+                || size + safeSizeOf(key, value) <= maxSize) {
+            // Nobody would be evicted
+            return true;
+        }
+        final K victim = map.keySet().iterator().next();
+        return sketch.frequency(key) >= sketch.frequency(victim);
+    }
+
     /**
      * @param maxSize
      *            the maximum size of the cache before returning. May be -1 to
@@ -310,6 +380,14 @@ public class LruCache<K, V> {
         return evictionCount;
     }
 
+    /**
+     * Returns the number of times {@link #put} refused a value because of the
+     * admission policy.
+     */
+    public synchronized final int rejectionCount() {
+        return rejectionCount;
+    }
+
     /**
      * Returns a copy of the current contents of the cache, ordered from least
      * recently accessed to most recently accessed.
@@ -0,0 +1,206 @@
+// @formatter:off
+/*
+ * PriorityExecutor.java - thread pool running newest, most important jobs first
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.util;
+
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size thread pool which runs queued jobs by priority and, among jobs
+ * with the same priority, in LIFO order.
+ * <p>
+ * This is meant for jobs whose relevance decays quickly, like loading images
+ * for list rows: after a fast scroll the rows currently on screen are the last
+ * ones to be requested, and they should not wait behind rows which have
+ * scrolled away long ago. Jobs which have been cancelled while queued are
+ * dropped as soon as they reach the head of the queue.
+ * <p>
+ * Jobs implementing {@link Prioritized} are scheduled according to their
+ * priority, everything else gets {@link #PRIORITY_NORMAL}. When the queue is
+ * full, the least relevant job (lowest priority, oldest) is dropped and
+ * cancelled.
+ * 
+ * @author Matteo Panella
+ */
+public class PriorityExecutor extends InstrumentedExecutor {
+
+    /** Priority for speculative work (e.g. prefetching) */
+    public static final int PRIORITY_LOW = -10;
+
+    /** Default priority */
+    public static final int PRIORITY_NORMAL = 0;
+
+    /** Priority for work the user is waiting for right now */
+    public static final int PRIORITY_HIGH = 10;
+
+    /**
+     * A job carrying its own scheduling priority.
+     */
+    public interface Prioritized {
+        /**
+         * Get the scheduling priority of this job: higher values run first.
+         */
+        int getPriority();
+    }
+
+    /**
+     * {@link FutureTask} carrying a scheduling priority.
+     */
+    public static class PriorityFutureTask<V> extends FutureTask<V> implements
+            Prioritized {
+        private final int mPriority;
+
+        public PriorityFutureTask(Callable<V> callable, int priority) {
+            super(callable);
+            mPriority = priority;
+        }
+
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
+    }
+
+    /** Highest priority first, newest first on ties */
+    private static final Comparator<Runnable> QUEUE_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            final QueuedJob left = (QueuedJob) lhs;
+            final QueuedJob right = (QueuedJob) rhs;
+            if (left.mPriority != right.mPriority) {
+                return left.mPriority > right.mPriority ? -1 : 1;
+            }
+            if (left.mSequence != right.mSequence) {
+                return left.mSequence > right.mSequence ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /** Submission counter, used to break ties */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * Create a new executor.
+     * 
+     * @param name
+     *            name of the executor, used for its threads
+     * @param poolSize
+     *            number of threads in the pool
+     * @param queueCapacity
+     *            maximum number of queued jobs
+     */
+    public PriorityExecutor(String name, int poolSize, int queueCapacity) {
+        // The queue itself is unbounded, capacity is enforced by execute()
+        super(name, poolSize, queueCapacity, new PriorityBlockingQueue<Runnable>(
+                11, QUEUE_ORDER), CANCEL_POLICY);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        final QueuedJob job = command instanceof QueuedJob ? (QueuedJob) command
+                : newJob(command);
+
+        if (getQueue().size() >= getQueueCapacity()) {
+            // Make room by shedding the least relevant job, which might very
+            // well be the new one
+            final Runnable leastRelevant = findLeastRelevant(job);
+            if (leastRelevant == job || getQueue().remove(leastRelevant)) {
+                countDropped(this);
+                cancel(leastRelevant);
+            }
+            if (leastRelevant == job) {
+                return;
+            }
+        }
+        super.execute(job);
+    }
+
+    @Override
+    protected QueuedJob newJob(Runnable command) {
+        final int priority = command instanceof Prioritized ? ((Prioritized) command)
+                .getPriority() : PRIORITY_NORMAL;
+        return new QueuedJob(command, priority, mSequence.incrementAndGet());
+    }
+
+    /**
+     * Change the priority of a job which is still waiting in the queue.
+     * <p>
+     * Queued jobs can't be reordered in place, so the job is taken out of the
+     * queue and put back as if it had just been submitted.
+     * 
+     * @param command
+     *            a job previously passed to {@link #execute(Runnable)}
+     * @param priority
+     *            the new priority
+     * @return {@code true} if the job is still queued, {@code false} if it
+     *         has already started or has been dropped
+     */
+    public boolean reprioritize(Runnable command, int priority) {
+        for (Runnable queued : getQueue()) {
+            final QueuedJob job = (QueuedJob) queued;
+            if (job.mJob == command) {
+                if (job.mPriority == priority) {
+                    return true;
+                }
+                if (!getQueue().remove(job)) {
+                    // A worker thread got there first
+                    return false;
+                }
+                super.execute(new QueuedJob(command, priority, mSequence
+                        .incrementAndGet()));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Runnable findLeastRelevant(QueuedJob candidate) {
+        Runnable leastRelevant = candidate;
+        for (Runnable queued : getQueue()) {
+            if (QUEUE_ORDER.compare(queued, leastRelevant) > 0) {
+                leastRelevant = queued;
+            }
+        }
+        return leastRelevant;
+    }
+
+    /**
+     * Queue entry: a job along with its scheduling order.
+     */
+    private static final class QueuedJob extends TimedJob {
+        final int mPriority;
+        final long mSequence;
+
+        QueuedJob(Runnable job, int priority, long sequence) {
+            super(job);
+            mPriority = priority;
+            mSequence = sequence;
+        }
+    }
+}
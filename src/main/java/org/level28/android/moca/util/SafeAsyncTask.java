@@ -18,6 +18,7 @@
 
 package org.level28.android.moca.util;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.io.InterruptedIOException;
@@ -26,8 +27,11 @@ import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.level28.android.moca.BuildConfig;
 
 import com.google.common.collect.Lists;
 
@@ -59,13 +63,41 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
     /** Default size for the executor thread pool. */
     public static final int DEFAULT_POOL_SIZE = 25;
 
-    /** Single-threaded executor. */
-    public static final Executor SINGLE_THREAD_EXECUTOR = Executors
-            .newFixedThreadPool(1);
+    /** Default maximum number of queued tasks for each executor. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+    /**
+     * Single-threaded executor.
+     * <p>
+     * Tasks submitted while the queue is full are dropped and
+     * {@link #onCancelled()} is called for them.
+     */
+    public static final InstrumentedExecutor SINGLE_THREAD_EXECUTOR = new InstrumentedExecutor(
+            "SafeAsyncTask serial", 1, DEFAULT_QUEUE_CAPACITY,
+            InstrumentedExecutor.CANCEL_POLICY);
+
+    /**
+     * Multi-threaded executor with default thread pool size.
+     * <p>
+     * Tasks submitted while the queue is full are dropped and
+     * {@link #onCancelled()} is called for them.
+     */
+    public static final InstrumentedExecutor DEFAULT_EXECUTOR = new InstrumentedExecutor(
+            "SafeAsyncTask", DEFAULT_POOL_SIZE, DEFAULT_QUEUE_CAPACITY,
+            InstrumentedExecutor.CANCEL_POLICY);
 
-    /** Multi-threaded executor with default thread pool size. */
-    public static final Executor DEFAULT_EXECUTOR = Executors
-            .newFixedThreadPool(DEFAULT_POOL_SIZE);
+    /**
+     * Multi-threaded executor running the newest, highest-priority jobs first
+     * (one thread per CPU core).
+     * <p>
+     * When the queue is full the least relevant task is dropped and
+     * {@link #onCancelled()} is called for it.
+     * 
+     * @see #priority(int)
+     */
+    public static final PriorityExecutor PRIORITY_EXECUTOR = new PriorityExecutor(
+            "SafeAsyncTask priority", Runtime.getRuntime()
+                    .availableProcessors(), DEFAULT_QUEUE_CAPACITY);
 
     /** Handler used to post events back to the UI thread. */
     protected Handler mHandler;
@@ -73,9 +105,27 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
     /** Executor used to run jobs in background */
     protected Executor mExecutor;
 
+    /** Scheduling priority, honored by {@link PriorityExecutor} */
+    protected int mPriority = PriorityExecutor.PRIORITY_NORMAL;
+
+    /** Don't wait for UI thread callbacks to complete */
+    protected boolean mAsyncCallbacks;
+
+    /** Group the next submitted {@link Task} will join (if any) */
+    protected TaskGroup mGroup;
+
     /** @hide */
     protected StackTraceElement[] mLaunchLocation;
 
+    /** @hide */
+    protected Throwable mLaunchSite;
+
+    /** Percentage of launch sites recorded in release builds */
+    private static volatile int sLaunchSiteSampling = 0;
+
+    /** Number of tasks executed, used for launch site sampling */
+    private static final AtomicInteger sLaunchCounter = new AtomicInteger();
+
     /** @hide */
     protected FutureTask<Void> mFuture;
 
@@ -131,7 +181,25 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
      * @return a {@code FutureTask} wrapping a new {@link Task} instance
      */
     public FutureTask<Void> future() {
-        mFuture = new FutureTask<Void>(newTask());
+        final Task<ResultT> task = newTask();
+        final TaskGroup group = mGroup;
+        mFuture = new PriorityExecutor.PriorityFutureTask<Void>(task,
+                mPriority) {
+            @Override
+            protected void done() {
+                if (group != null) {
+                    group.remove(this);
+                }
+                if (isCancelled() && task.mStarted.compareAndSet(false, true)) {
+                    // The task never ran (and now it never will), so it can't
+                    // tell anybody
+                    task.doCancelled();
+                }
+            }
+        };
+        if (group != null) {
+            group.add(mFuture);
+        }
         return mFuture;
     }
 
@@ -168,6 +236,89 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
         return mHandler;
     }
 
+    /**
+     * Set the scheduling priority for the next {@link Task} submitted.
+     * <p>
+     * Only meaningful with a {@link PriorityExecutor}, other executors ignore
+     * it.
+     * 
+     * @param priority
+     *            the new priority, higher values run first
+     * @return this {@code SafeAsyncTask} instance (useful for call chaining)
+     */
+    public SafeAsyncTask<ResultT> priority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /**
+     * Change the scheduling priority of the last {@link Task} submitted, if
+     * it's still waiting in a {@link PriorityExecutor} queue. Tasks submitted
+     * later get the new priority as well.
+     * 
+     * @param priority
+     *            the new priority, higher values run first
+     * @return {@code true} if the last task submitted is still queued
+     */
+    public boolean reprioritize(int priority) {
+        mPriority = priority;
+        final FutureTask<Void> future = mFuture;
+        return future != null && mExecutor instanceof PriorityExecutor
+                && ((PriorityExecutor) mExecutor).reprioritize(future, priority);
+    }
+
+    /** Get the current scheduling priority. */
+    public int priority() {
+        return mPriority;
+    }
+
+    /**
+     * Make the next {@link Task} submitted join a {@link TaskGroup}, so that
+     * it is cancelled along with the rest of the group.
+     * 
+     * @param group
+     *            the group to join, or {@code null} for none
+     * @return this {@code SafeAsyncTask} instance (useful for call chaining)
+     */
+    public SafeAsyncTask<ResultT> group(TaskGroup group) {
+        mGroup = group;
+        return this;
+    }
+
+    /** Get the {@link TaskGroup} new tasks will join (if any). */
+    public TaskGroup group() {
+        return mGroup;
+    }
+
+    /**
+     * Choose whether the next {@link Task} submitted should wait for its UI
+     * thread callbacks.
+     * <p>
+     * By default the background thread blocks until each callback has run, so
+     * that {@link #onPreExecute()} completes before {@link #call()} starts.
+     * With asynchronous callbacks the background thread just posts them to
+     * the {@link Handler} and moves on, which keeps it available for other
+     * jobs when the UI thread is busy. Callbacks are still run in the usual
+     * order, and an exception thrown by {@link #onPreExecute()} or
+     * {@link #onSuccess(Object)} is still handed to
+     * {@link #onException(Exception)}, but {@link #call()} may run
+     * concurrently with {@link #onPreExecute()}: if the latter fails, the
+     * outcome of the former is discarded.
+     * 
+     * @param async
+     *            {@code true} to post callbacks without waiting for them
+     * @return this {@code SafeAsyncTask} instance (useful for call chaining)
+     */
+    public SafeAsyncTask<ResultT> asyncCallbacks(boolean async) {
+        mAsyncCallbacks = async;
+        return this;
+    }
+
+    /** Check if UI thread callbacks are posted without waiting for them. */
+    public boolean asyncCallbacks() {
+        return mAsyncCallbacks;
+    }
+
     /**
      * Schedule a new {@link Task} for background execution.
      * <p>
@@ -175,15 +326,51 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
      * executed concurrently with other background tasks.
      */
     public void execute() {
-        execute(Thread.currentThread().getStackTrace());
+        mLaunchLocation = null;
+        // Throwable only records a cheap native backtrace, stack trace
+        // elements are built only if the task actually fails
+        mLaunchSite = shouldCaptureLaunchSite() ? new Throwable() : null;
+        mExecutor.execute(future());
     }
 
     /** @hide */
     protected void execute(StackTraceElement[] launchLocation) {
         mLaunchLocation = launchLocation;
+        mLaunchSite = null;
         mExecutor.execute(future());
     }
 
+    /**
+     * Set the percentage of tasks recording where they have been executed
+     * from in release builds, so that failures can be traced back to their
+     * launch site.
+     * <p>
+     * Debug builds always record the launch site. Release builds don't by
+     * default, since {@link #execute()} is called on the UI thread and often
+     * (e.g. once per list row bind).
+     * 
+     * @param percent
+     *            sampling rate, between 0 and 100
+     */
+    public static void setLaunchSiteSampling(int percent) {
+        checkArgument(percent >= 0 && percent <= 100,
+                "percent must be between 0 and 100");
+        sLaunchSiteSampling = percent;
+    }
+
+    private static boolean shouldCaptureLaunchSite() {
+        if (BuildConfig.DEBUG) {
+            return true;
+        }
+        final int sampling = sLaunchSiteSampling;
+        if (sampling == 0) {
+            return false;
+        }
+        // Deterministic sampling, cheaper than a random number generator
+        final int count = sLaunchCounter.getAndIncrement() & Integer.MAX_VALUE;
+        return count % 100 < sampling;
+    }
+
     /**
      * Cancel the last submitted {@link Task}.
      * <p>
@@ -267,6 +454,14 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
         Log.e(LOG_TAG, "Throwable caught during background processing", t);
     }
 
+    /**
+     * Runs on the UI thread if the task has been cancelled before it got a
+     * chance to run, either through {@link #cancel(boolean)} or because its
+     * executor dropped it. No other callback is run in this case.
+     */
+    protected void onCancelled() {
+    }
+
     /**
      * Runs on the UI thread when the background thread has finished processing
      * regardless of its exception status.
@@ -286,13 +481,34 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
     public static class Task<ResultT> implements Callable<Void> {
         protected final SafeAsyncTask<ResultT> mParent;
         protected final Handler mHandler;
+        protected final boolean mAsync;
+
+        /**
+         * Claimed either by the background thread picking up this task or by
+         * {@code done()} on cancellation, whichever comes first: the other one
+         * stays silent, so that {@code onCancelled()} and {@code onSuccess()}
+         * are never both called.
+         */
+        final AtomicBoolean mStarted = new AtomicBoolean();
+
+        /**
+         * Set when a callback failed, so that later callbacks (except for
+         * {@code onFinally()}) are skipped. Asynchronous callbacks only, UI
+         * thread only.
+         */
+        private boolean mCallbackFailed;
 
         public Task(SafeAsyncTask<ResultT> parent) {
             mParent = parent;
             mHandler = parent.mHandler;
+            mAsync = parent.mAsyncCallbacks;
         }
 
         public Void call() throws Exception {
+            if (!mStarted.compareAndSet(false, true)) {
+                // Cancelled right before starting, onCancelled() is on its way
+                return null;
+            }
             try {
                 doPreExecute();
                 doSuccess(doCall());
@@ -318,7 +534,7 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
         }
 
         protected void doPreExecute() throws Exception {
-            postToUiThreadAndWait(new Callable<Void>() {
+            postCallback(new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
                     mParent.onPreExecute();
@@ -332,7 +548,7 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
         }
 
         protected void doSuccess(final ResultT r) throws Exception {
-            postToUiThreadAndWait(new Callable<Void>() {
+            postCallback(new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
                     mParent.onSuccess(r);
@@ -343,7 +559,7 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
 
         protected void doException(final Exception e) throws Exception {
             fixupStackTrace(e);
-            postToUiThreadAndWait(new Callable<Void>() {
+            postErrorCallback(new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
                     if (e instanceof InterruptedException
@@ -359,7 +575,7 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
 
         protected void doThrowable(final Throwable e) throws Exception {
             fixupStackTrace(e);
-            postToUiThreadAndWait(new Callable<Void>() {
+            postErrorCallback(new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
                     mParent.onThrowable(e);
@@ -369,12 +585,107 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
         }
 
         protected void doFinally() throws Exception {
-            postToUiThreadAndWait(new Callable<Void>() {
+            final Callable<Void> c = new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
                     mParent.onFinally();
                     return null;
                 }
+            };
+            if (!mAsync) {
+                postToUiThreadAndWait(c);
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        c.call();
+                    } catch (Exception e) {
+                        // Logged but ignored
+                        Log.e(LOG_TAG, e.toString());
+                    }
+                }
+            });
+        }
+
+        protected void doCancelled() {
+            // Called from whatever thread cancelled the task, don't wait
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mParent.onCancelled();
+                    } catch (Exception e) {
+                        // Logged but ignored
+                        Log.e(LOG_TAG, e.toString());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Run a callback whose failures are handed to {@code onException()}.
+         */
+        protected void postCallback(final Callable<Void> c) throws Exception {
+            if (!mAsync) {
+                postToUiThreadAndWait(c);
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallbackFailed) {
+                        return;
+                    }
+                    try {
+                        c.call();
+                    } catch (Exception e) {
+                        mCallbackFailed = true;
+                        fixupStackTrace(e);
+                        try {
+                            if (e instanceof InterruptedException
+                                    || e instanceof InterruptedIOException) {
+                                mParent.onInterrupted(e);
+                            } else {
+                                mParent.onException(e);
+                            }
+                        } catch (Exception f) {
+                            // Logged but ignored
+                            Log.e(LOG_TAG, f.toString());
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Run an error callback, whose own failures are only logged.
+         */
+        protected void postErrorCallback(final Callable<Void> c)
+                throws Exception {
+            if (!mAsync) {
+                postToUiThreadAndWait(c);
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallbackFailed) {
+                        // onPreExecute() failed and has already been reported
+                        return;
+                    }
+                    mCallbackFailed = true;
+                    try {
+                        c.call();
+                    } catch (Exception e) {
+                        // Logged but ignored
+                        Log.e(LOG_TAG, e.toString());
+                    }
+                }
             });
         }
 
@@ -406,9 +717,13 @@ public abstract class SafeAsyncTask<ResultT> implements Callable<ResultT> {
 
         // @formatter:off
         private void fixupStackTrace(final Throwable e) {
-            if (mParent.mLaunchLocation != null) {
+            StackTraceElement[] launchLocation = mParent.mLaunchLocation;
+            if (launchLocation == null && mParent.mLaunchSite != null) {
+                launchLocation = mParent.mLaunchSite.getStackTrace();
+            }
+            if (launchLocation != null) {
                 final ArrayList<StackTraceElement> stack = Lists.newArrayList(Arrays.asList(e.getStackTrace()));
-                stack.addAll(Arrays.asList(mParent.mLaunchLocation));
+                stack.addAll(Arrays.asList(launchLocation));
                 e.setStackTrace(stack.toArray(new StackTraceElement[stack.size()]));
             }
         }
@@ -38,6 +38,7 @@ import org.level28.android.moca.BuildConfig;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -169,6 +170,22 @@ public class SelectionBuilder {
                 groupBy, having, orderBy, limit);
     }
 
+    /**
+     * Build the SQL statement executed by
+     * {@link #query(SQLiteDatabase, String[], String)}, e.g. to check its query
+     * plan. Arguments are returned by {@link #getSelectionArgs()}.
+     */
+    public String buildQuery(String[] columns, String orderBy) {
+        assertTable();
+        String[] mappedColumns = null;
+        if (columns != null) {
+            mappedColumns = columns.clone();
+            mapColumns(mappedColumns);
+        }
+        return SQLiteQueryBuilder.buildQueryString(false, mTable,
+                mappedColumns, getSelection(), null, null, orderBy, null);
+    }
+
     /**
      * Execute update using the current internal state as {@code WHERE} clause.
      */
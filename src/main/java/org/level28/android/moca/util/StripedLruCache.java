@@ -0,0 +1,340 @@
+// @formatter:off
+/*
+ * StripedLruCache.java - LRU cache split in independently locked segments
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link LruCache} split in independently locked segments.
+ * <p>
+ * Every {@link LruCache#get(Object) LruCache.get()} reorders the access list
+ * under the cache monitor, so all threads hitting the same cache (e.g. the UI
+ * thread binding rows and the image loading threads) contend for a single
+ * lock. This class spreads keys over a fixed number of segments, each one
+ * being a smaller {@link LruCache} with its own lock and an equal share of the
+ * maximum size.
+ * <p>
+ * The contract of {@link #sizeOf}, {@link #entryRemoved} and {@link #create}
+ * is the same as {@link LruCache}'s. Eviction order is LRU within each
+ * segment, hence only approximately LRU for the whole cache, and a single
+ * entry may not be larger than the share of a segment (see
+ * {@link #maxEntrySize()}).
+ * 
+ * @author Matteo Panella
+ */
+public class StripedLruCache<K, V> {
+
+    /** Default number of segments */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+
+    private final Segment[] segments;
+
+    private final int maxSize;
+
+    /**
+     * @param maxSize
+     *            for caches that do not override {@link #sizeOf}, this is the
+     *            maximum number of entries in the cache. For all other caches,
+     *            this is the maximum sum of the sizes of the entries in this
+     *            cache.
+     */
+    public StripedLruCache(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maxSize
+     *            see {@link #StripedLruCache(int)}
+     * @param concurrencyLevel
+     *            number of segments
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLruCache(int maxSize, int concurrencyLevel) {
+        checkArgument(maxSize > 0, "maxSize <= 0");
+        checkArgument(concurrencyLevel > 0, "concurrencyLevel <= 0");
+        checkArgument(maxSize >= concurrencyLevel,
+                "maxSize < concurrencyLevel");
+        this.maxSize = maxSize;
+        // Generic array creation is not allowed, go through the wildcard type
+        segments = (Segment[]) new StripedLruCache<?, ?>.Segment[concurrencyLevel];
+        final int segmentSize = maxSize / concurrencyLevel;
+        for (int i = 0; i < concurrencyLevel; i++) {
+            // Hand out the remainder to the first segments
+            segments[i] = new Segment(segmentSize
+                    + (i < maxSize % concurrencyLevel ? 1 : 0));
+        }
+    }
+
+    /**
+     * See {@link LruCache#enableFrequencyAdmission(int)}.
+     */
+    protected final void enableFrequencyAdmission(int expectedEntries) {
+        final int segmentEntries = Math.max(expectedEntries / segments.length,
+                1);
+        for (Segment segment : segments) {
+            segment.enableFrequencyAdmission(segmentEntries);
+        }
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is moved to the
+     * head of its segment queue. This returns null if a value is not cached and
+     * cannot be created.
+     */
+    public final V get(K key) {
+        checkNotNull(key, "key == null");
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * See {@link LruCache#peek(Object)}.
+     */
+    public final V peek(K key) {
+        checkNotNull(key, "key == null");
+        return segmentFor(key).peek(key);
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * its segment queue.
+     * <p>
+     * Values larger than {@link #maxEntrySize()} are not cached: they are
+     * released right away through {@link #entryRemoved} as if they had been
+     * evicted, and the previous value mapped by {@code key} is removed.
+     * 
+     * @return the previous value mapped by {@code key}.
+     */
+    public V put(K key, V value) {
+        checkNotNull(key, "key == null");
+        checkNotNull(value, "value == null");
+        final Segment segment = segmentFor(key);
+        if (sizeOf(key, value) > segment.maxSize()) {
+            // It would flush the whole segment, and then itself
+            final V previous = segment.remove(key);
+            entryRemoved(true, key, value, null);
+            return previous;
+        }
+        return segment.put(key, value);
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     * 
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        checkNotNull(key, "key == null");
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * See {@link LruCache#entryRemoved(boolean, Object, Object, Object)}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * See {@link LruCache#create(Object)}.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    /**
+     * See {@link LruCache#sizeOf(Object, Object)}.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        for (Segment segment : segments) {
+            segment.evictAll();
+        }
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the size of the largest entry which can be cached, i.e. the
+     * share of the smallest segment.
+     */
+    public final int maxEntrySize() {
+        // The remainder is handed out to the first segments
+        return segments[segments.length - 1].maxSize();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value.
+     */
+    public final int hitCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.hitCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.missCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.createCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.putCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.evictionCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #put} refused a value because of the
+     * admission policy.
+     */
+    public final int rejectionCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.rejectionCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache. Entries are ordered
+     * from least recently accessed to most recently accessed within each
+     * segment only.
+     */
+    public final Map<K, V> snapshot() {
+        final LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>();
+        for (Segment segment : segments) {
+            snapshot.putAll(segment.snapshot());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public final String toString() {
+        final int hitCount = hitCount();
+        final int accesses = hitCount + missCount();
+        final int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format(
+                "StripedLruCache[maxSize=%d,segments=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, segments.length, hitCount, accesses - hitCount,
+                hitPercent);
+    }
+
+    private Segment segmentFor(K key) {
+        // Spread the hash, so that keys differing only in the upper bits
+        // don't pile up in the same segment
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * A single segment, delegating the customization points to the outer
+     * cache.
+     */
+    private final class Segment extends LruCache<K, V> {
+        Segment(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, K key, V oldValue,
+                V newValue) {
+            StripedLruCache.this.entryRemoved(evicted, key, oldValue, newValue);
+        }
+
+        @Override
+        protected V create(K key) {
+            return StripedLruCache.this.create(key);
+        }
+
+        @Override
+        protected int sizeOf(K key, V value) {
+            return StripedLruCache.this.sizeOf(key, value);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// @formatter:off
+/*
+ * TaskGroup.java - bulk cancellation of related background tasks
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Group of background tasks sharing the same lifetime, e.g. those of a
+ * fragment or of a bitmap loader.
+ * <p>
+ * {@link SafeAsyncTask}s join a group through
+ * {@link SafeAsyncTask#group(TaskGroup)} and leave it once they're done.
+ * When the owner goes away it calls {@link #cancelAll(boolean)}, or
+ * {@link #close()} if no more tasks are expected: tasks submitted to a closed
+ * group are cancelled right away.
+ * <p>
+ * This class is thread safe.
+ * 
+ * @author Matteo Panella
+ */
+public final class TaskGroup {
+
+    private final HashSet<Future<?>> mTasks = Sets.newHashSet();
+
+    private boolean mClosed;
+
+    /**
+     * Add a task to this group, cancelling it if the group has been closed.
+     */
+    void add(Future<?> task) {
+        synchronized (this) {
+            if (!mClosed) {
+                mTasks.add(task);
+                return;
+            }
+        }
+        task.cancel(false);
+    }
+
+    /** Remove a task which has completed. */
+    synchronized void remove(Future<?> task) {
+        mTasks.remove(task);
+    }
+
+    /**
+     * Cancel all tasks in this group.
+     * <p>
+     * The group can still be used afterwards.
+     * 
+     * @param mayInterruptIfRunning
+     *            {@code true} if the threads running tasks of this group
+     *            should be interrupted
+     */
+    public void cancelAll(boolean mayInterruptIfRunning) {
+        final ArrayList<Future<?>> tasks;
+        synchronized (this) {
+            tasks = Lists.newArrayList(mTasks);
+            mTasks.clear();
+        }
+        // Don't hold the lock, done() callbacks will try to remove tasks
+        for (Future<?> task : tasks) {
+            task.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /**
+     * Cancel all tasks in this group, interrupting those which are running,
+     * and cancel any task submitted later on.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        cancelAll(true);
+    }
+
+    /** Check if this group has been closed. */
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Get the number of tasks still pending in this group. */
+    public synchronized int size() {
+        return mTasks.size();
+    }
+}
@@ -0,0 +1,54 @@
+// @formatter:off
+/*
+ * BitmapLruCacheTest.java - bitmap cache sizing tests
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.bitmaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Segment sizing tests for {@link BitmapLruCache}.
+ * 
+ * @author Matteo Panella
+ */
+public class BitmapLruCacheTest {
+    private static final int MEGABYTE = 1024 * 1024;
+
+    @Test
+    public void segmentsFitLargestBitmap() {
+        // From an eighth of the smallest heap to the whole largest one
+        for (int maxSize = 2 * MEGABYTE; maxSize <= 256 * MEGABYTE; maxSize += MEGABYTE) {
+            final int level = BitmapLruCache.getConcurrencyLevel(maxSize);
+            assertTrue(level >= 1);
+            assertTrue("maxSize=" + maxSize, level == 1
+                    || maxSize / level >= BitmapLruCache.LARGEST_ENTRY_SIZE);
+        }
+    }
+
+    @Test
+    public void largeCachesUseAllSegments() {
+        assertEquals(BitmapLruCache.DEFAULT_CONCURRENCY_LEVEL,
+                BitmapLruCache.getConcurrencyLevel(64 * MEGABYTE));
+    }
+}
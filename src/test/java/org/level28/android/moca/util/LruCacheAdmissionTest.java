@@ -0,0 +1,132 @@
+// @formatter:off
+/*
+ * LruCacheAdmissionTest.java - frequency admission tests
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Frequency admission tests for {@link LruCache}.
+ * 
+ * @author Matteo Panella
+ */
+public class LruCacheAdmissionTest {
+    private static final int CACHE_SIZE = 100;
+
+    /** Avatars shown over and over (e.g. the most active accounts) */
+    private static final int HOT_SET_SIZE = 80;
+
+    /** Share of accesses to one-off avatars (e.g. a fast scroll) */
+    private static final double SCAN_RATIO = 0.5;
+
+    private static final int ACCESSES = 100000;
+
+    /** Cache with frequency admission enabled */
+    private static final class AdmittingCache extends LruCache<Integer, String> {
+        AdmittingCache(int maxSize) {
+            super(maxSize);
+            enableFrequencyAdmission(maxSize);
+        }
+    }
+
+    @Test
+    public void admissionBeatsLruOnScanPlusHotSet() {
+        final double lruHitRate = replay(new LruCache<Integer, String>(
+                CACHE_SIZE));
+        final double admittingHitRate = replay(new AdmittingCache(CACHE_SIZE));
+        System.out.println(String.format(
+                "Scan plus hot set: LRU %.1f%%, frequency admission %.1f%%",
+                lruHitRate * 100, admittingHitRate * 100));
+        assertTrue("LRU " + lruHitRate + ", admission " + admittingHitRate,
+                admittingHitRate > lruHitRate * 1.5);
+    }
+
+    @Test
+    public void newEntryIsAdmittedOverOneOffVictim() {
+        final LruCache<Integer, String> cache = new AdmittingCache(2);
+        // Look up and cache each avatar, like the bitmap loader does
+        for (int key = 0; key < 3; key++) {
+            assertNull(cache.get(key));
+            cache.put(key, "v" + key);
+        }
+        // Neither 0 nor 2 has been seen more than once: the newest wins
+        assertEquals(0, cache.rejectionCount());
+        assertEquals("v2", cache.get(2));
+    }
+
+    @Test
+    public void oneOffEntryDoesNotEvictFrequentOne() {
+        final LruCache<Integer, String> cache = new AdmittingCache(1);
+        assertNull(cache.get(0));
+        cache.put(0, "hot");
+        for (int i = 0; i < 5; i++) {
+            assertEquals("hot", cache.get(0));
+        }
+
+        assertNull(cache.get(1));
+        cache.put(1, "cold");
+        assertEquals(1, cache.rejectionCount());
+        assertEquals("hot", cache.get(0));
+    }
+
+    @Test
+    public void peekDoesNotCountTowardsAdmission() {
+        final LruCache<Integer, String> cache = new AdmittingCache(1);
+        assertNull(cache.get(0));
+        cache.put(0, "hot");
+        assertEquals("hot", cache.get(0));
+
+        // Probing for a key many times doesn't make it more popular
+        for (int i = 0; i < 5; i++) {
+            assertNull(cache.peek(1));
+        }
+        assertNull(cache.get(1));
+        cache.put(1, "cold");
+        assertEquals(1, cache.rejectionCount());
+        assertEquals("hot", cache.peek(0));
+    }
+
+    /**
+     * Replay a trace mixing a hot set with a scan of keys accessed only once.
+     * 
+     * @return the hit rate
+     */
+    private static double replay(final LruCache<Integer, String> cache) {
+        final Random random = new Random(42);
+        int nextScanKey = HOT_SET_SIZE;
+        for (int i = 0; i < ACCESSES; i++) {
+            final int key = random.nextDouble() < SCAN_RATIO ? nextScanKey++
+                    : random.nextInt(HOT_SET_SIZE);
+            if (cache.get(key) == null) {
+                cache.put(key, "v" + key);
+            }
+        }
+        return (double) cache.hitCount()
+                / (cache.hitCount() + cache.missCount());
+    }
+}
@@ -0,0 +1,144 @@
+// @formatter:off
+/*
+ * LruCacheContentionBenchmark.java - lock contention benchmark
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.util;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Throughput of {@link LruCache} and {@link StripedLruCache} when several
+ * threads hit them at the same time, as the UI thread and the bitmap loading
+ * threads do.
+ * <p>
+ * Not a unit test: run it by hand with {@code main()}, on a JVM or, better, on
+ * a device.
+ * 
+ * @author Matteo Panella
+ */
+public final class LruCacheContentionBenchmark {
+
+    private static final int CACHE_SIZE = 256;
+    private static final int KEY_SPACE = 512;
+    private static final int OPERATIONS_PER_THREAD = 1000000;
+
+    /** One operation in ten is a put, the rest are gets */
+    private static final int PUT_RATIO = 10;
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+    private static final int RUNS = 5;
+
+    /** Common interface of the caches under test */
+    private interface Cache {
+        String get(Integer key);
+
+        void put(Integer key, String value);
+    }
+
+    private LruCacheContentionBenchmark() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final String[] values = new String[KEY_SPACE];
+        for (int i = 0; i < KEY_SPACE; i++) {
+            values[i] = "value" + i;
+        }
+
+        for (int threads : THREAD_COUNTS) {
+            long single = 0;
+            long striped = 0;
+            for (int run = 0; run < RUNS; run++) {
+                final LruCache<Integer, String> lru = new LruCache<Integer, String>(
+                        CACHE_SIZE);
+                single = Math.max(single, measure(threads, values, new Cache() {
+                    @Override
+                    public String get(Integer key) {
+                        return lru.get(key);
+                    }
+
+                    @Override
+                    public void put(Integer key, String value) {
+                        lru.put(key, value);
+                    }
+                }));
+
+                final StripedLruCache<Integer, String> stripedLru = new StripedLruCache<Integer, String>(
+                        CACHE_SIZE);
+                striped = Math.max(striped, measure(threads, values,
+                        new Cache() {
+                            @Override
+                            public String get(Integer key) {
+                                return stripedLru.get(key);
+                            }
+
+                            @Override
+                            public void put(Integer key, String value) {
+                                stripedLru.put(key, value);
+                            }
+                        }));
+            }
+            System.out.println(String.format(
+                    "%d threads: LruCache %6d ops/ms, StripedLruCache %6d ops/ms",
+                    threads, single, striped));
+        }
+    }
+
+    /**
+     * Hammer a cache from the given number of threads.
+     * 
+     * @return throughput, in operations per millisecond
+     */
+    private static long measure(final int threads, final String[] values,
+            final Cache cache) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        final int key = random.nextInt(KEY_SPACE);
+                        if (i % PUT_RATIO == 0) {
+                            cache.put(key, values[key]);
+                        } else {
+                            cache.get(key);
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        final long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = Math.max((System.nanoTime() - startTime) / 1000000,
+                1);
+        return (long) threads * OPERATIONS_PER_THREAD / elapsed;
+    }
+}
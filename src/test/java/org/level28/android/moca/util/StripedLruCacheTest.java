@@ -0,0 +1,172 @@
+// @formatter:off
+/*
+ * StripedLruCacheTest.java - segment sizing and eviction tests
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Segment sizing and eviction tests for {@link StripedLruCache}.
+ * 
+ * @author Matteo Panella
+ */
+public class StripedLruCacheTest {
+
+    @Test
+    public void segmentsShareMaxSize() {
+        final StripedLruCache<Integer, String> cache = new StripedLruCache<Integer, String>(
+                10, 4);
+        assertEquals(10, cache.maxSize());
+        // Segments hold 3, 3, 2 and 2 entries
+        assertEquals(2, cache.maxEntrySize());
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "v" + i);
+            assertTrue(cache.size() <= 10);
+        }
+        // Every segment is full
+        assertEquals(10, cache.size());
+        assertEquals(10, cache.snapshot().size());
+        assertEquals(990, cache.evictionCount());
+    }
+
+    @Test
+    public void singleSegmentIsPlainLru() {
+        final StripedLruCache<String, String> cache = new StripedLruCache<String, String>(
+                3, 1);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals("A", cache.get("a"));
+        cache.put("d", "D");
+
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals("D", cache.get("d"));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedWithinSegment() {
+        final StripedLruCache<Integer, String> cache = new StripedLruCache<Integer, String>(
+                8, 4);
+        // Find three keys landing in the same segment, which holds two
+        final ArrayList<Integer> sameSegment = new ArrayList<Integer>();
+        final StripedLruCache<Integer, String> probe = new StripedLruCache<Integer, String>(
+                4, 4);
+        for (int i = 0; sameSegment.size() < 3; i++) {
+            probe.evictAll();
+            if (sameSegment.isEmpty()) {
+                sameSegment.add(i);
+                continue;
+            }
+            // Segments of the probe hold a single entry: a key evicts the
+            // first one only if they share a segment
+            probe.put(sameSegment.get(0), "first");
+            probe.put(i, "other");
+            if (probe.get(sameSegment.get(0)) == null) {
+                sameSegment.add(i);
+            }
+        }
+
+        cache.put(sameSegment.get(0), "0");
+        cache.put(sameSegment.get(1), "1");
+        cache.get(sameSegment.get(0));
+        cache.put(sameSegment.get(2), "2");
+
+        assertEquals("0", cache.get(sameSegment.get(0)));
+        assertNull(cache.get(sameSegment.get(1)));
+        assertEquals("2", cache.get(sameSegment.get(2)));
+    }
+
+    @Test
+    public void oversizedEntryDoesNotFlushSegment() {
+        final ArrayList<String> evicted = new ArrayList<String>();
+        final StripedLruCache<String, Integer> cache = new StripedLruCache<String, Integer>(
+                2, 1) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+
+            @Override
+            protected void entryRemoved(boolean wasEvicted, String key,
+                    Integer oldValue, Integer newValue) {
+                if (wasEvicted) {
+                    evicted.add(key);
+                }
+            }
+        };
+        assertEquals(2, cache.maxEntrySize());
+
+        cache.put("small", 1);
+        assertNull(cache.put("huge", 3));
+        assertEquals(Integer.valueOf(1), cache.get("small"));
+        assertNull(cache.get("huge"));
+        assertEquals(1, evicted.size());
+        assertEquals("huge", evicted.get(0));
+    }
+
+    @Test
+    public void oversizedReplacementRemovesStaleValue() {
+        final StripedLruCache<String, Integer> cache = new StripedLruCache<String, Integer>(
+                8, 4) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+        cache.put("key", 1);
+        assertEquals(Integer.valueOf(1), cache.put("key", 3));
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMoreSegmentsThanEntries() {
+        new StripedLruCache<String, String>(3, 4);
+    }
+
+    @Test
+    public void createsMissingValues() {
+        final StripedLruCache<String, String> cache = new StripedLruCache<String, String>(
+                4) {
+            @Override
+            protected String create(String key) {
+                return key.toUpperCase();
+            }
+        };
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.createCount());
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.hitCount());
+        assertFalse(cache.snapshot().isEmpty());
+    }
+}
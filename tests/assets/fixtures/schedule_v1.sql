@@ -0,0 +1,12 @@
+-- schedule.db as created by schema version 1, one statement per line.
+-- Generated from ScheduleDatabase.onCreate() at that version: never edit a
+-- fixture once its version has been released.
+
+CREATE TABLE sessions (_id INTEGER PRIMARY KEY AUTOINCREMENT,updated INTEGER NOT NULL,session_id TEXT NOT NULL,session_title TEXT NOT NULL,session_day INTEGER NOT NULL,session_start INTEGER NOT NULL,session_end INTEGER NOT NULL,session_hosts TEXT,session_lang TEXT NOT NULL,session_abstract TEXT,UNIQUE (session_id) ON CONFLICT REPLACE)
+CREATE INDEX sessions_session_day ON sessions (session_day)
+CREATE INDEX sessions_session_start ON sessions (session_start)
+CREATE INDEX sessions_session_end ON sessions (session_end)
+
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (1,1345500000000,'opening','Opening ceremony',1,1345726800000,1345730400000,'MOCA staff','it','Welcome to MOCA 2012')
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (2,1345500000000,'tor-hidden','Tor hidden services',1,1345730400000,1345734000000,'Alice, Bob','en','How hidden services work')
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (3,1345500000000,'hardware-hacking','Hardware hacking for fun',2,1345813200000,1345820400000,'Mallory','it',NULL)
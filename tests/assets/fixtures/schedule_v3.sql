@@ -0,0 +1,19 @@
+-- schedule.db as created by schema version 3, one statement per line.
+-- Generated from ScheduleDatabase.onCreate() at that version: never edit a
+-- fixture once its version has been released.
+
+CREATE TABLE sessions (_id INTEGER PRIMARY KEY AUTOINCREMENT,updated INTEGER NOT NULL,session_id TEXT NOT NULL,session_title TEXT NOT NULL,session_day INTEGER NOT NULL,session_start INTEGER NOT NULL,session_end INTEGER NOT NULL,session_hosts TEXT,session_lang TEXT NOT NULL,session_abstract TEXT,UNIQUE (session_id) ON CONFLICT REPLACE)
+CREATE INDEX sessions_session_day ON sessions (session_day)
+CREATE INDEX sessions_session_start ON sessions (session_start)
+CREATE INDEX sessions_session_end ON sessions (session_end)
+CREATE TABLE sync_state (_id INTEGER PRIMARY KEY AUTOINCREMENT,feed_url TEXT NOT NULL,feed_etag TEXT,feed_last_modified INTEGER,UNIQUE (feed_url) ON CONFLICT REPLACE)
+CREATE VIRTUAL TABLE sessions_search USING fts3(search_title,search_hosts,search_abstract)
+CREATE TRIGGER sessions_search_insert AFTER INSERT ON sessions BEGIN INSERT INTO sessions_search (docid,search_title,search_hosts,search_abstract) VALUES (new._id,new.session_title,new.session_hosts,new.session_abstract); END
+CREATE TRIGGER sessions_search_replace BEFORE INSERT ON sessions BEGIN DELETE FROM sessions_search WHERE docid IN (SELECT _id FROM sessions WHERE session_id = new.session_id); END
+CREATE TRIGGER sessions_search_update AFTER UPDATE ON sessions BEGIN DELETE FROM sessions_search WHERE docid = old._id;INSERT INTO sessions_search (docid,search_title,search_hosts,search_abstract) VALUES (new._id,new.session_title,new.session_hosts,new.session_abstract); END
+CREATE TRIGGER sessions_search_delete AFTER DELETE ON sessions BEGIN DELETE FROM sessions_search WHERE docid = old._id; END
+
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (1,1345500000000,'opening','Opening ceremony',1,1345726800000,1345730400000,'MOCA staff','it','Welcome to MOCA 2012')
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (2,1345500000000,'tor-hidden','Tor hidden services',1,1345730400000,1345734000000,'Alice, Bob','en','How hidden services work')
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (3,1345500000000,'hardware-hacking','Hardware hacking for fun',2,1345813200000,1345820400000,'Mallory','it',NULL)
+INSERT INTO sync_state (_id,feed_url,feed_etag,feed_last_modified) VALUES (1,'https://moca.olografix.org/api/schedule.json','"5035fe3c-1f2a"',1345699900000)
@@ -0,0 +1,20 @@
+-- schedule.db as created by schema version 7, one statement per line.
+-- Generated from ScheduleDatabase.onCreate() at that version: never edit a
+-- fixture once its version has been released.
+
+CREATE TABLE sessions (_id INTEGER PRIMARY KEY AUTOINCREMENT,updated INTEGER NOT NULL,session_id TEXT NOT NULL,session_title TEXT NOT NULL,session_day INTEGER NOT NULL,session_start INTEGER NOT NULL,session_end INTEGER NOT NULL,session_hosts TEXT,session_lang TEXT NOT NULL,session_abstract TEXT,UNIQUE (session_id) ON CONFLICT REPLACE)
+CREATE TABLE sync_state (_id INTEGER PRIMARY KEY AUTOINCREMENT,feed_url TEXT NOT NULL,feed_etag TEXT,feed_last_modified INTEGER, feed_watermark TEXT,UNIQUE (feed_url) ON CONFLICT REPLACE)
+CREATE VIRTUAL TABLE sessions_search USING fts3(search_title,search_hosts,search_abstract)
+CREATE TRIGGER sessions_search_insert AFTER INSERT ON sessions BEGIN INSERT INTO sessions_search (docid,search_title,search_hosts,search_abstract) VALUES (new._id,new.session_title,new.session_hosts,new.session_abstract); END
+CREATE TRIGGER sessions_search_replace BEFORE INSERT ON sessions BEGIN DELETE FROM sessions_search WHERE docid IN (SELECT _id FROM sessions WHERE session_id = new.session_id); END
+CREATE TRIGGER sessions_search_update AFTER UPDATE ON sessions BEGIN DELETE FROM sessions_search WHERE docid = old._id;INSERT INTO sessions_search (docid,search_title,search_hosts,search_abstract) VALUES (new._id,new.session_title,new.session_hosts,new.session_abstract); END
+CREATE TRIGGER sessions_search_delete AFTER DELETE ON sessions BEGIN DELETE FROM sessions_search WHERE docid = old._id; END
+CREATE INDEX sessions_session_day_session_start ON sessions (session_day,session_start,session_title COLLATE NOCASE,session_end,session_id,session_hosts)
+CREATE INDEX sessions_session_start_session_title ON sessions (session_start,session_title COLLATE NOCASE,session_end,session_id,session_hosts)
+CREATE TABLE tweets (_id INTEGER PRIMARY KEY ON CONFLICT REPLACE,createdAt INTEGER NOT NULL,fromUser TEXT NOT NULL,fromUserId INTEGER NOT NULL,fromUserName TEXT,location TEXT,lat REAL,lon REAL,profileImageUrl TEXT,contents TEXT)
+
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (1,1345500000000,'opening','Opening ceremony',1,1345726800000,1345730400000,'MOCA staff','it','Welcome to MOCA 2012')
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (2,1345500000000,'tor-hidden','Tor hidden services',1,1345730400000,1345734000000,'Alice, Bob','en','How hidden services work')
+INSERT INTO sessions (_id,updated,session_id,session_title,session_day,session_start,session_end,session_hosts,session_lang,session_abstract) VALUES (3,1345500000000,'hardware-hacking','Hardware hacking for fun',2,1345813200000,1345820400000,'Mallory','it',NULL)
+INSERT INTO sync_state (_id,feed_url,feed_etag,feed_last_modified,feed_watermark) VALUES (1,'https://moca.olografix.org/api/schedule.json','"5035fe3c-1f2a"',1345699900000,'w-1345699900')
+INSERT INTO tweets (_id,createdAt,fromUser,fromUserId,fromUserName,location,lat,lon,profileImageUrl,contents) VALUES (238000000000000001,1345730000000,'someone',4242,'Some One','Pescara',NULL,NULL,'https://example.org/a.png','Ready for #moca2012')
@@ -0,0 +1,155 @@
+// @formatter:off
+/*
+ * BitmapCodecBenchmark.java - L2 cache format benchmark
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Encoding and decoding cost of the L2 cache formats, measured on an avatar
+ * like the ones loaded by {@link NetworkAvatarLoader}.
+ * <p>
+ * The source format stores the downloaded JPEG, so it costs nothing to
+ * encode but has to be scaled down and processed again on each decode.
+ * Results are logged with the {@code BitmapCodecBenchmark} tag.
+ * 
+ * @author Matteo Panella
+ */
+public class BitmapCodecBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "BitmapCodecBenchmark";
+
+    /** Size of the downloaded avatar */
+    private static final int SOURCE_SIZE = 128;
+
+    /** Size class avatars are displayed at */
+    private static final int SIZE_CLASS = 64;
+
+    private static final float CORNER_RADIUS = 6;
+
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 200;
+
+    /** Downloaded avatar */
+    private byte[] mSource;
+
+    /** Avatar as stored in the L1 cache */
+    private Bitmap mProcessed;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Bitmap original = Bitmap.createBitmap(SOURCE_SIZE, SOURCE_SIZE,
+                Bitmap.Config.ARGB_8888);
+        final Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, SOURCE_SIZE, SOURCE_SIZE,
+                0xff336699, 0xffcc9933, Shader.TileMode.CLAMP));
+        new Canvas(original).drawPaint(paint);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        original.compress(CompressFormat.JPEG, 85, out);
+        original.recycle();
+        mSource = out.toByteArray();
+        mProcessed = decodeSource(mSource);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProcessed.recycle();
+        super.tearDown();
+    }
+
+    public void testPng() throws Exception {
+        benchmark("PNG", BitmapCodec.PNG);
+    }
+
+    public void testRaw() throws Exception {
+        benchmark("RAW", BitmapCodec.RAW);
+    }
+
+    public void testSource() throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            decodeSource(mSource).recycle();
+        }
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            decodeSource(mSource).recycle();
+        }
+        report("Source", 0, SystemClock.elapsedRealtime() - start,
+                mSource.length);
+    }
+
+    private void benchmark(final String name, final BitmapCodec codec)
+            throws Exception {
+        byte[] encoded = null;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            encoded = codec.encode(mSource, mProcessed);
+            codec.decode(encoded, SIZE_CLASS, SIZE_CLASS, null).recycle();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoded = codec.encode(mSource, mProcessed);
+        }
+        final long encodeTime = SystemClock.elapsedRealtime() - start;
+
+        Bitmap decoded = null;
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (decoded != null) {
+                decoded.recycle();
+            }
+            decoded = codec.decode(encoded, SIZE_CLASS, SIZE_CLASS, null);
+        }
+        final long decodeTime = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(mProcessed.getWidth(), decoded.getWidth());
+        assertEquals(mProcessed.getHeight(), decoded.getHeight());
+        decoded.recycle();
+
+        report(name, encodeTime, decodeTime, encoded.length);
+    }
+
+    /**
+     * Same processing as {@link NetworkAvatarLoader}.
+     */
+    private static Bitmap decodeSource(final byte[] data) {
+        final Bitmap scaled = BitmapUtils.decodeSampledBitmapFromByteArray(
+                data, 0, data.length, SIZE_CLASS, SIZE_CLASS);
+        return BitmapUtils.roundCorners(scaled, CORNER_RADIUS);
+    }
+
+    private static void report(final String name, final long encodeTime,
+            final long decodeTime, final int size) {
+        Log.i(LOG_TAG, String.format("%-6s encode %5dus decode %5dus %6d bytes",
+                name, encodeTime * 1000 / ITERATIONS, decodeTime * 1000
+                        / ITERATIONS, size));
+    }
+}
@@ -0,0 +1,133 @@
+// @formatter:off
+/*
+ * BitmapKeyBenchmark.java - avatar cache key benchmark
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.bitmaps;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Cost of building avatar cache keys, which happens on the UI thread for
+ * every row bind.
+ * <p>
+ * Compares the original implementation (a new digest and a
+ * {@link BigInteger} for each key) with the current one, with and without
+ * memoization. Results are logged with the {@code BitmapKeyBenchmark} tag.
+ * 
+ * @author Matteo Panella
+ */
+public class BitmapKeyBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "BitmapKeyBenchmark";
+
+    /** Distinct avatars, roughly a screenful of tweets worth twice */
+    private static final int URL_COUNT = 32;
+
+    private static final int SIZE_CLASS = 64;
+
+    private static final int WARMUP_ITERATIONS = 100;
+    private static final int ITERATIONS = 1000;
+
+    private String[] mUrls;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUrls = new String[URL_COUNT];
+        for (int i = 0; i < URL_COUNT; i++) {
+            mUrls[i] = "https://si0.twimg.com/profile_images/" + (1000000 + i)
+                    + "/avatar_normal.png";
+        }
+    }
+
+    public void testKeysMatchOriginalFormat() throws Exception {
+        for (String url : mUrls) {
+            assertEquals(originalBitmapKey(url, SIZE_CLASS),
+                    AbstractBitmapLoader.computeBitmapKey(url, SIZE_CLASS));
+            assertEquals(originalBitmapKey(url, SIZE_CLASS),
+                    AbstractBitmapLoader.getBitmapKey(url, SIZE_CLASS));
+        }
+    }
+
+    public void testOriginal() throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            originalBitmapKey(mUrls[i % URL_COUNT], SIZE_CLASS);
+        }
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            originalBitmapKey(mUrls[i % URL_COUNT], SIZE_CLASS);
+        }
+        report("original", SystemClock.elapsedRealtime() - start);
+    }
+
+    public void testComputed() throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            AbstractBitmapLoader.computeBitmapKey(mUrls[i % URL_COUNT],
+                    SIZE_CLASS);
+        }
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            AbstractBitmapLoader.computeBitmapKey(mUrls[i % URL_COUNT],
+                    SIZE_CLASS);
+        }
+        report("computed", SystemClock.elapsedRealtime() - start);
+    }
+
+    public void testMemoized() throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            AbstractBitmapLoader.getBitmapKey(mUrls[i % URL_COUNT], SIZE_CLASS);
+        }
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            AbstractBitmapLoader.getBitmapKey(mUrls[i % URL_COUNT], SIZE_CLASS);
+        }
+        report("memoized", SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Cache keys as they used to be built.
+     */
+    private static String originalBitmapKey(final String url,
+            final int sizeClass) throws Exception {
+        final String finalKey = new StringBuilder(url).append("::")
+                .append(sizeClass).toString();
+        final byte[] digested = MessageDigest.getInstance("SHA-1").digest(
+                finalKey.getBytes("UTF-8"));
+        final String hashed = new BigInteger(1, digested).toString(16);
+        final int padding = 40 - hashed.length();
+        if (padding == 0) {
+            return hashed;
+        }
+        final char[] zeros = new char[padding];
+        Arrays.fill(zeros, '0');
+        return new StringBuilder(40).append(zeros).append(hashed).toString();
+    }
+
+    private static void report(final String name, final long time) {
+        Log.i(LOG_TAG, String.format("%-8s %6dns per key", name, time
+                * 1000000 / ITERATIONS));
+    }
+}
@@ -0,0 +1,378 @@
+// @formatter:off
+/*
+ * ScheduleDatabaseMigrationTest.java - schema upgrades against fixture databases
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.provider;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.level28.android.moca.BuildConfig;
+import org.level28.android.moca.provider.ScheduleContract.Sessions;
+import org.level28.android.moca.provider.ScheduleContract.SyncState;
+import org.level28.android.moca.provider.ScheduleDatabase.Tables;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Schema upgrade tests for {@link ScheduleDatabase}.
+ * <p>
+ * Fixtures under {@code assets/fixtures} hold the schema (and some data) of
+ * {@code schedule.db} as created by each released schema version. Every
+ * migration step must turn a fixture into the next one, and every fixture
+ * must be upgraded to the same schema as a freshly created database, without
+ * losing data.
+ * <p>
+ * Tables are compared by their columns and unique constraints rather than by
+ * their SQL text, which {@code ALTER TABLE} rewrites differently across
+ * SQLite versions.
+ * 
+ * @author Matteo Panella
+ */
+public class ScheduleDatabaseMigrationTest extends InstrumentationTestCase {
+
+    /** Oldest schema version we can upgrade from */
+    private static final int OLDEST_VERSION = 1;
+
+    /** Sessions stored in every fixture */
+    private static final String[] FIXTURE_SESSION_IDS = { "hardware-hacking",
+            "opening", "tor-hidden" };
+    /** Last update time of every fixture session */
+    private static final long FIXTURE_UPDATED = 1345500000000L;
+
+    /** First fixture holding sync state for the schedule feed */
+    private static final int SYNC_STATE_VERSION = 2;
+    /** First fixture holding a delta feed watermark */
+    private static final int SYNC_WATERMARK_VERSION = 6;
+    private static final String FIXTURE_FEED_URL = "https://moca.olografix.org/api/schedule.json";
+    private static final String FIXTURE_FEED_ETAG = "\"5035fe3c-1f2a\"";
+    private static final long FIXTURE_FEED_LAST_MODIFIED = 1345699900000L;
+    private static final String FIXTURE_FEED_WATERMARK = "w-1345699900";
+
+    /** Context used to read fixtures from the test package */
+    private Context mFixtureContext;
+    /** Contexts holding databases under test, renamed to stay out of the way */
+    private Context mFreshContext;
+    private Context mUpgradedContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context targetContext = getInstrumentation().getTargetContext();
+        mFixtureContext = getInstrumentation().getContext();
+        mFreshContext = new RenamingDelegatingContext(targetContext,
+                "test.fresh.");
+        mUpgradedContext = new RenamingDelegatingContext(targetContext,
+                "test.upgraded.");
+        ScheduleDatabase.deleteDatabase(mFreshContext);
+        ScheduleDatabase.deleteDatabase(mUpgradedContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ScheduleDatabase.deleteDatabase(mFreshContext);
+        ScheduleDatabase.deleteDatabase(mUpgradedContext);
+        super.tearDown();
+    }
+
+    public void testFreshDatabaseMatchesLatestFixture() throws IOException {
+        final ScheduleDatabase fresh = new ScheduleDatabase(mFreshContext);
+        final SQLiteDatabase fixture = openFixture(mUpgradedContext,
+                ScheduleDatabase.DATABASE_VERSION);
+        try {
+            assertEquals(describeSchema(fixture),
+                    describeSchema(fresh.getReadableDatabase()));
+        } finally {
+            fixture.close();
+            fresh.close();
+        }
+    }
+
+    public void testEachMigrationStepMatchesNextFixture() throws IOException {
+        for (int version = OLDEST_VERSION; version < ScheduleDatabase.DATABASE_VERSION; version++) {
+            final SQLiteDatabase db = openFixture(mUpgradedContext, version);
+            final SQLiteDatabase expected = openFixture(mFreshContext,
+                    version + 1);
+            try {
+                assertEquals(version + 1,
+                        ScheduleDatabase.migrate(db, version, version + 1));
+                assertEquals("Upgrade from version " + version,
+                        describeSchema(expected), describeSchema(db));
+                assertFixtureData(db, version);
+            } finally {
+                db.close();
+                expected.close();
+            }
+        }
+    }
+
+    public void testUpgradeFromEveryVersionMatchesFreshDatabase()
+            throws IOException {
+        final ScheduleDatabase fresh = new ScheduleDatabase(mFreshContext);
+        final List<String> expected;
+        try {
+            expected = describeSchema(fresh.getReadableDatabase());
+        } finally {
+            fresh.close();
+        }
+
+        for (int version = OLDEST_VERSION; version < ScheduleDatabase.DATABASE_VERSION; version++) {
+            openFixture(mUpgradedContext, version).close();
+            final ScheduleDatabase upgraded = new ScheduleDatabase(
+                    mUpgradedContext);
+            try {
+                final SQLiteDatabase db = upgraded.getWritableDatabase();
+                assertEquals(ScheduleDatabase.DATABASE_VERSION,
+                        db.getVersion());
+                assertEquals("Upgrade from version " + version, expected,
+                        describeSchema(db));
+                assertFixtureData(db, version);
+            } finally {
+                upgraded.close();
+            }
+        }
+    }
+
+    public void testUnknownVersionFailsInDebugBuilds() throws IOException {
+        if (!BuildConfig.DEBUG) {
+            // Release builds start over with an empty database
+            return;
+        }
+
+        final SQLiteDatabase db = openFixture(mUpgradedContext, OLDEST_VERSION);
+        db.setVersion(-1);
+        db.close();
+
+        final ScheduleDatabase upgraded = new ScheduleDatabase(
+                mUpgradedContext);
+        try {
+            upgraded.getWritableDatabase();
+            fail("Upgrade from an unknown version should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        } finally {
+            upgraded.close();
+        }
+
+        // Nothing has been dropped
+        final SQLiteDatabase untouched = mUpgradedContext.openOrCreateDatabase(
+                ScheduleDatabase.DATABASE_NAME, Context.MODE_PRIVATE, null);
+        try {
+            assertFixtureData(untouched, OLDEST_VERSION);
+        } finally {
+            untouched.close();
+        }
+    }
+
+    /**
+     * Replace the schedule database of the given context with a fixture.
+     * 
+     * @return the fixture database, open for writing
+     */
+    private SQLiteDatabase openFixture(final Context context,
+            final int version) throws IOException {
+        final String name = "fixtures/schedule_v" + version + ".sql";
+        final BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(mFixtureContext
+                    .getAssets().open(name), "UTF-8"));
+        } catch (FileNotFoundException e) {
+            throw new AssertionError("Missing " + name
+                    + ", every schema version needs a fixture");
+        }
+
+        ScheduleDatabase.deleteDatabase(context);
+        final SQLiteDatabase db = context.openOrCreateDatabase(
+                ScheduleDatabase.DATABASE_NAME, Context.MODE_PRIVATE, null);
+        db.beginTransaction();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0 && !line.startsWith("--")) {
+                    db.execSQL(line);
+                }
+            }
+            db.setVersion(version);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            reader.close();
+        }
+        return db;
+    }
+
+    /**
+     * Assert that the data stored in the fixture of the given version is
+     * still there, still searchable if the schema has a full-text index, and
+     * that columns added since then hold their default value.
+     */
+    private static void assertFixtureData(final SQLiteDatabase db,
+            final int fixtureVersion) {
+        final ArrayList<String> sessionIds = new ArrayList<String>();
+        Cursor cursor = db.query(Tables.SESSIONS, new String[] {
+                Sessions.SESSION_ID, Sessions.UPDATED }, null, null, null,
+                null, Sessions.SESSION_ID);
+        try {
+            while (cursor.moveToNext()) {
+                sessionIds.add(cursor.getString(0));
+                assertEquals("Update time of " + cursor.getString(0),
+                        FIXTURE_UPDATED, cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(Arrays.asList(FIXTURE_SESSION_IDS), sessionIds);
+
+        final String schema = describeSchema(db).toString();
+        if (schema.contains(Tables.SESSIONS_SEARCH)) {
+            cursor = db.rawQuery("SELECT docid FROM " + Tables.SESSIONS_SEARCH
+                    + " WHERE " + Tables.SESSIONS_SEARCH + " MATCH ?",
+                    new String[] { "hidden*" });
+            try {
+                assertEquals(1, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (fixtureVersion < SYNC_STATE_VERSION) {
+            return;
+        }
+        final boolean hasWatermark = schema
+                .contains(SyncState.FEED_WATERMARK);
+        cursor = db.query(Tables.SYNC_STATE, hasWatermark ? new String[] {
+                SyncState.FEED_ETAG, SyncState.FEED_LAST_MODIFIED,
+                SyncState.FEED_WATERMARK } : new String[] {
+                SyncState.FEED_ETAG, SyncState.FEED_LAST_MODIFIED },
+                SyncState.FEED_URL_SELECTION,
+                new String[] { FIXTURE_FEED_URL }, null, null, null);
+        try {
+            assertTrue("Missing sync state", cursor.moveToFirst());
+            assertEquals(FIXTURE_FEED_ETAG, cursor.getString(0));
+            assertEquals(FIXTURE_FEED_LAST_MODIFIED, cursor.getLong(1));
+            if (hasWatermark) {
+                // Feeds synchronized before watermarks existed have none
+                final String watermark = fixtureVersion < SYNC_WATERMARK_VERSION ? null
+                        : FIXTURE_FEED_WATERMARK;
+                assertEquals(watermark, cursor.getString(2));
+            }
+            assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Describe the schema of a database in a form suitable for comparison.
+     */
+    private static List<String> describeSchema(final SQLiteDatabase db) {
+        final ArrayList<String> schema = new ArrayList<String>();
+        final Cursor cursor = db.rawQuery("SELECT type,name,sql FROM "
+                + "sqlite_master WHERE name NOT LIKE 'sqlite_%' AND "
+                + "name != 'android_metadata' ORDER BY type,name", null);
+        try {
+            while (cursor.moveToNext()) {
+                final String type = cursor.getString(0);
+                final String name = cursor.getString(1);
+                final String sql = cursor.getString(2);
+                if ("table".equals(type) && sql != null
+                        && !sql.startsWith("CREATE VIRTUAL")) {
+                    schema.add("table " + name + ": " + describeTable(db, name));
+                } else {
+                    schema.add(type + " " + name + ": " + sql);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    /**
+     * Describe the columns and the unique constraints of a table.
+     */
+    private static String describeTable(final SQLiteDatabase db,
+            final String table) {
+        final StringBuilder sb = new StringBuilder();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                sb.append(cursor.getString(cursor.getColumnIndex("name")))
+                        .append(' ')
+                        .append(cursor.getString(cursor.getColumnIndex("type")))
+                        .append(" notnull=")
+                        .append(cursor.getInt(cursor.getColumnIndex("notnull")))
+                        .append(" default=")
+                        .append(cursor.getString(cursor
+                                .getColumnIndex("dflt_value")))
+                        .append(" pk=")
+                        .append(cursor.getInt(cursor.getColumnIndex("pk")))
+                        .append(", ");
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Unique constraints show up as automatic indices
+        final ArrayList<String> constraints = new ArrayList<String>();
+        cursor = db.rawQuery("PRAGMA index_list(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                final String index = cursor.getString(cursor
+                        .getColumnIndex("name"));
+                if (index.startsWith("sqlite_autoindex_")) {
+                    constraints.add(index + " unique="
+                            + cursor.getInt(cursor.getColumnIndex("unique"))
+                            + " " + describeIndexColumns(db, index));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(constraints);
+        return sb.append(constraints).toString();
+    }
+
+    private static List<String> describeIndexColumns(final SQLiteDatabase db,
+            final String index) {
+        final ArrayList<String> columns = new ArrayList<String>();
+        final Cursor cursor = db.rawQuery("PRAGMA index_info(" + index + ")",
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndex("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,202 @@
+// @formatter:off
+/*
+ * SessionQueryPlanTest.java - query plans of provider queries
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.level28.android.moca.provider.ScheduleContract.Sessions;
+import org.level28.android.moca.provider.ScheduleContract.SyncState;
+import org.level28.android.moca.provider.ScheduleContract.Tweets;
+import org.level28.android.moca.provider.ScheduleDatabase.Tables;
+import org.level28.android.moca.util.SelectionBuilder;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Check the query plans of every URI served by {@link ScheduleProvider}.
+ * <p>
+ * Queries are built by {@link ScheduleProvider} itself and run through
+ * {@code EXPLAIN QUERY PLAN}, so that changes to the projections, the default
+ * sort orders or the indices can't silently turn them back into full table
+ * scans and temporary B-trees. Session lists must be answered from covering
+ * indices, in {@link Sessions#DEFAULT_SORT} order.
+ * <p>
+ * Every full scan must be listed by the test expecting it, along with the
+ * reason why it's deliberate.
+ * 
+ * @author Matteo Panella
+ */
+public class SessionQueryPlanTest extends AndroidTestCase {
+
+    /** Start time of the first session on day 1 */
+    private static final long DAY1_START = 1345730400000L;
+
+    /** Matches full scans, in both the old and the new plan format */
+    private static final Pattern FULL_SCAN = Pattern
+            .compile("^SCAN (?:TABLE )?(\\S+)");
+
+    private Context mTestContext;
+    private ScheduleDatabase mOpenHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestContext = new RenamingDelegatingContext(getContext(), "test.");
+        ScheduleDatabase.deleteDatabase(mTestContext);
+        mOpenHelper = new ScheduleDatabase(mTestContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mOpenHelper.close();
+        ScheduleDatabase.deleteDatabase(mTestContext);
+        super.tearDown();
+    }
+
+    public void testSessionsOnDayUseCoveringIndex() {
+        assertCoveredQuery(Sessions.buildSessionsDayDirUri(1));
+    }
+
+    public void testSessionsAtTimeUseCoveringIndex() {
+        assertCoveredQuery(Sessions.buildSessionsAtDirUri(DAY1_START));
+    }
+
+    public void testAllSessionsAreReadInOrder() {
+        // Deliberate scan: synchronization reads every stored session, but
+        // walks the start time index instead of sorting the table
+        final SelectionBuilder builder = ScheduleProvider
+                .buildSelection(Sessions.CONTENT_URI);
+        assertQueryPlan(builder.buildQuery(null, Sessions.DEFAULT_SORT),
+                builder.getSelectionArgs(), false, Tables.SESSIONS);
+    }
+
+    public void testSessionByIdUsesUniqueIndex() {
+        final SelectionBuilder builder = ScheduleProvider
+                .buildSelection(Sessions.buildSessionUri("opening"));
+        assertQueryPlan(builder.buildQuery(null, null),
+                builder.getSelectionArgs(), false);
+    }
+
+    public void testSearchUsesFullTextIndex() {
+        final SelectionBuilder builder = ScheduleProvider
+                .buildSearchSelection(Sessions.buildSearchUri("hidden serv"));
+        // Deliberate scan: a MATCH constraint on the full-text table is
+        // answered by its own index (any index number but 0, which is a full
+        // scan). Results are sorted by relevance, which can't be indexed.
+        final List<String> plan = assertQueryPlan(builder.buildQuery(
+                Sessions.LIST_PROJECTION, ScheduleProvider.SEARCH_SORT),
+                builder.getSelectionArgs(), true, Tables.SESSIONS_SEARCH);
+        for (String step : plan) {
+            assertFalse("Full scan of the full-text index: " + plan,
+                    step.contains("VIRTUAL TABLE INDEX 0:"));
+        }
+    }
+
+    public void testSyncStateUsesUniqueIndex() {
+        final SelectionBuilder builder = ScheduleProvider
+                .buildSelection(SyncState.CONTENT_URI);
+        builder.where(SyncState.FEED_URL_SELECTION,
+                "https://moca.olografix.org/api/schedule.json");
+        assertQueryPlan(builder.buildQuery(new String[] {
+                SyncState.FEED_ETAG, SyncState.FEED_LAST_MODIFIED,
+                SyncState.FEED_WATERMARK }, null), builder
+                .getSelectionArgs(), false);
+    }
+
+    public void testTweetsAreReadInOrder() {
+        // Deliberate scan: the (trimmed) tweet cache is always loaded in
+        // full, newest first, which is rowid order
+        final SelectionBuilder builder = ScheduleProvider
+                .buildSelection(Tweets.CONTENT_URI);
+        assertQueryPlan(builder.buildQuery(null, Tweets.DEFAULT_SORT),
+                builder.getSelectionArgs(), false, Tables.TWEETS);
+    }
+
+    /**
+     * Assert that the session list query for the given URI is answered from
+     * a covering index, without sorting.
+     */
+    private void assertCoveredQuery(final Uri uri) {
+        final SelectionBuilder builder = ScheduleProvider.buildSelection(uri);
+        final List<String> plan = assertQueryPlan(
+                builder.buildQuery(Sessions.LIST_PROJECTION,
+                        Sessions.DEFAULT_SORT), builder.getSelectionArgs(),
+                false);
+
+        boolean covered = false;
+        for (String step : plan) {
+            covered |= step.contains("USING COVERING INDEX");
+        }
+        assertTrue("No covering index for " + uri + ": " + plan, covered);
+    }
+
+    /**
+     * Assert that a query only scans the given tables, and only sorts its
+     * results if allowed to.
+     * 
+     * @return the query plan
+     */
+    private List<String> assertQueryPlan(final String sql,
+            final String[] selectionArgs, final boolean sorted,
+            final String... scannedTables) {
+        final List<String> plan = explainQueryPlan(sql, selectionArgs);
+        final List<String> allowedScans = Arrays.asList(scannedTables);
+        for (String step : plan) {
+            if (!sorted) {
+                assertFalse("Temporary B-tree for " + sql + ": " + plan,
+                        step.contains("TEMP B-TREE"));
+            }
+            final Matcher scan = FULL_SCAN.matcher(step);
+            if (scan.find()) {
+                assertTrue("Full scan of " + scan.group(1) + " for " + sql
+                        + ": " + plan, allowedScans.contains(scan.group(1)));
+            }
+        }
+        return plan;
+    }
+    private List<String> explainQueryPlan(final String sql,
+            final String[] selectionArgs) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        final Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                selectionArgs);
+        try {
+            final int detail = cursor.getColumnIndexOrThrow("detail");
+            final ArrayList<String> plan = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+            return plan;
+        } finally {
+            cursor.close();
+        }
+    }
+}
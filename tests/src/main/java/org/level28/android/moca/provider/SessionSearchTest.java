@@ -0,0 +1,201 @@
+// @formatter:off
+/*
+ * SessionSearchTest.java - full-text search over sessions
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+package org.level28.android.moca.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.level28.android.moca.provider.ScheduleContract.Sessions;
+import org.level28.android.moca.provider.ScheduleDatabase.Tables;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.test.ProviderTestCase2;
+
+/**
+ * Check that {@link Sessions#buildSearchUri(String)} finds sessions through
+ * the full-text index, and that the index follows every write to the
+ * sessions table.
+ * 
+ * @author Matteo Panella
+ */
+public class SessionSearchTest extends ProviderTestCase2<ScheduleProvider> {
+
+    private static final long DAY1_START = 1345730400000L;
+    private static final long ONE_HOUR = 3600000L;
+
+    private ContentResolver mResolver;
+
+    public SessionSearchTest() {
+        super(ScheduleProvider.class, ScheduleContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testInsertedSessionIsFound() {
+        insertSession("tor-hidden", "Tor hidden services", "Alice",
+                "Running onion services", 0);
+
+        assertSearchResults("hidden", "tor-hidden");
+        assertSearchResults("alice", "tor-hidden");
+        assertSearchResults("onion", "tor-hidden");
+        assertSearchResults("bitcoin");
+    }
+
+    public void testEveryWordIsMatchedAsPrefix() {
+        insertSession("tor-hidden", "Tor hidden services", "Alice",
+                "Running onion services", 0);
+        insertSession("hardware-hacking", "Hardware hacking", "Bob",
+                "Soldering irons and hidden debug ports", 1);
+
+        assertSearchResults("hid", "tor-hidden", "hardware-hacking");
+        assertSearchResults("hid tor", "tor-hidden");
+        // FTS3 operators are treated as separators
+        assertSearchResults("\"hard*\"", "hardware-hacking");
+        assertSearchResults("  -- ");
+    }
+
+    public void testTitleHitsRankFirst() {
+        // Starts first, but only mentions the query in its abstract
+        insertSession("opening", "Opening ceremony", "Staff",
+                "Welcome to the Android camp", 0);
+        insertSession("android-security", "Android security", "Carol",
+                "Rooting phones", 2);
+
+        assertSearchResults("android", "android-security", "opening");
+    }
+
+    public void testMoreHitsRankFirst() {
+        insertSession("opening", "Opening ceremony", "Staff",
+                "Welcome to the camp", 0);
+        insertSession("closing", "Closing ceremony", "Staff",
+                "Goodbye from the camp staff, see you at the next camp", 1);
+
+        // Both match on the title, ties broken by number of hits...
+        assertSearchResults("ceremony camp", "closing", "opening");
+        // ...and then by start time
+        assertSearchResults("ceremony", "opening", "closing");
+    }
+
+    public void testUpdateReindexesSession() {
+        insertSession("tor-hidden", "Tor hidden services", "Alice",
+                "Running onion services", 0);
+
+        final ContentValues values = new ContentValues();
+        values.put(Sessions.SESSION_TITLE, "I2P eepsites");
+        assertEquals(1, mResolver.update(
+                Sessions.buildSessionUri("tor-hidden"), values, null, null));
+
+        assertSearchResults("hidden");
+        assertSearchResults("eepsites", "tor-hidden");
+        assertSearchResults("onion", "tor-hidden");
+        assertIndexSize(1);
+    }
+
+    public void testDeleteRemovesSessionFromIndex() {
+        insertSession("tor-hidden", "Tor hidden services", "Alice",
+                "Running onion services", 0);
+        insertSession("hardware-hacking", "Hardware hacking", "Bob",
+                "Soldering irons and hidden debug ports", 1);
+
+        assertEquals(1, mResolver.delete(
+                Sessions.buildSessionUri("tor-hidden"), null, null));
+
+        assertSearchResults("hidden", "hardware-hacking");
+        assertSearchResults("onion");
+        assertIndexSize(1);
+    }
+
+    public void testReplacedSessionIsReindexed() {
+        insertSession("tor-hidden", "Tor hidden services", "Alice",
+                "Running onion services", 0);
+        // Same session id: ON CONFLICT REPLACE deletes the old row without
+        // firing the delete trigger
+        insertSession("tor-hidden", "I2P eepsites", "Alice",
+                "Running garlic services", 0);
+
+        assertSearchResults("hidden");
+        assertSearchResults("onion");
+        assertSearchResults("garlic", "tor-hidden");
+        assertIndexSize(1);
+    }
+
+    private void insertSession(final String sessionId, final String title,
+            final String hosts, final String sessionAbstract, final int slot) {
+        final long start = DAY1_START + slot * ONE_HOUR;
+        final ContentValues values = new ContentValues();
+        values.put(Sessions.UPDATED, ScheduleContract.UPDATED_UNKNOWN);
+        values.put(Sessions.SESSION_ID, sessionId);
+        values.put(Sessions.SESSION_TITLE, title);
+        values.put(Sessions.SESSION_DAY, 1);
+        values.put(Sessions.SESSION_START, start);
+        values.put(Sessions.SESSION_END, start + ONE_HOUR);
+        values.put(Sessions.SESSION_HOSTS, hosts);
+        values.put(Sessions.SESSION_LANG, "en");
+        values.put(Sessions.SESSION_ABSTRACT, sessionAbstract);
+        mResolver.insert(Sessions.CONTENT_URI, values);
+    }
+
+    /**
+     * Assert that searching for {@code query} returns exactly the given
+     * sessions, in the given order.
+     */
+    private void assertSearchResults(final String query,
+            final String... sessionIds) {
+        final Cursor cursor = mResolver.query(Sessions.buildSearchUri(query),
+                new String[] { Sessions._ID, Sessions.SESSION_ID,
+                        Sessions.SEARCH_SNIPPET }, null, null, null);
+        final List<String> results = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                results.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals("Results for \"" + query + "\"",
+                Arrays.asList(sessionIds), results);
+    }
+
+    /**
+     * Assert the number of documents in the full-text index, including
+     * stale ones that a join with the sessions table would hide.
+     */
+    private void assertIndexSize(final long expected) {
+        final ScheduleDatabase openHelper = new ScheduleDatabase(
+                getMockContext());
+        try {
+            assertEquals(expected, DatabaseUtils.longForQuery(
+                    openHelper.getReadableDatabase(), "SELECT count(*) FROM "
+                            + Tables.SESSIONS_SEARCH, null));
+        } finally {
+            openHelper.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+// @formatter:off
+/*
+ * LaunchSiteBenchmark.java - launch site capture benchmark
+ * Copyright (C) 2012 Matteo Panella <morpheus@level28.org>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+// @formatter:on
+
+
+package org.level28.android.moca.util;
+
+import java.util.concurrent.Executor;
+
+import org.level28.android.moca.BuildConfig;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Cost of {@link SafeAsyncTask#execute()}, which records where the task has
+ * been executed from and happens on the UI thread for every row bind.
+ * <p>
+ * Tasks are submitted to an executor dropping them, so that only the work
+ * done on the calling thread is measured. Sampling modes are switched with
+ * {@link SafeAsyncTask#setLaunchSiteSampling(int)} and compared against
+ * building the stack trace on every call (the original implementation) and
+ * against no capture at all. Calls are made from a stack as deep as a list
+ * adapter's. Results are logged with the {@code LaunchSiteBenchmark} tag.
+ * <p>
+ * Debug builds always record the launch site, so sampling only makes a
+ * difference when benchmarking a release build.
+ * 
+ * @author Matteo Panella
+ */
+public class LaunchSiteBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "LaunchSiteBenchmark";
+
+    /** Roughly the depth of the UI thread stack when a row is bound */
+    private static final int STACK_DEPTH = 40;
+
+    private static final int WARMUP_ITERATIONS = 1000;
+    private static final int ITERATIONS = 10000;
+
+    private static final int MODE_NONE = 0;
+    private static final int MODE_STACK_TRACE = 1;
+    private static final int MODE_EXECUTE = 2;
+
+    private BenchmarkTask mTask;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTask = new BenchmarkTask();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SafeAsyncTask.setLaunchSiteSampling(0);
+        super.tearDown();
+    }
+
+    public void testNoCapture() {
+        report("no capture", measure(MODE_NONE, STACK_DEPTH));
+    }
+
+    public void testStackTrace() {
+        report("getStackTrace()", measure(MODE_STACK_TRACE, STACK_DEPTH));
+    }
+
+    public void testSampledNone() {
+        SafeAsyncTask.setLaunchSiteSampling(0);
+        report("sampled 0%", measure(MODE_EXECUTE, STACK_DEPTH));
+    }
+
+    public void testSampledTenPercent() {
+        SafeAsyncTask.setLaunchSiteSampling(10);
+        report("sampled 10%", measure(MODE_EXECUTE, STACK_DEPTH));
+    }
+
+    public void testSampledAll() {
+        SafeAsyncTask.setLaunchSiteSampling(100);
+        report("sampled 100%", measure(MODE_EXECUTE, STACK_DEPTH));
+    }
+
+    /**
+     * @return the average cost of an execute() call, in nanoseconds
+     */
+    private long measure(final int mode, final int depth) {
+        if (depth > 0) {
+            return measure(mode, depth - 1);
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            mTask.execute(mode);
+        }
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mTask.execute(mode);
+        }
+        return (SystemClock.elapsedRealtime() - start) * 1000000 / ITERATIONS;
+    }
+
+    private static void report(final String name, final long nanos) {
+        Log.i(LOG_TAG, String.format("%-16s %8dns per execute()%s", name,
+                nanos, BuildConfig.DEBUG ? " (debug build)" : ""));
+    }
+
+    /**
+     * Task submitted to an executor that never runs it.
+     */
+    private static final class BenchmarkTask extends SafeAsyncTask<Void> {
+        private static final Executor DROP_EXECUTOR = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                // Only the submission is being measured
+            }
+        };
+
+        BenchmarkTask() {
+            super(new Handler(Looper.getMainLooper()), DROP_EXECUTOR);
+        }
+
+        void execute(final int mode) {
+            switch (mode) {
+            case MODE_NONE:
+                execute((StackTraceElement[]) null);
+                break;
+            case MODE_STACK_TRACE:
+                execute(Thread.currentThread().getStackTrace());
+                break;
+            default:
+                execute();
+                break;
+            }
+        }
+
+        @Override
+        public Void call() throws Exception {
+            return null;
+        }
+    }
+}